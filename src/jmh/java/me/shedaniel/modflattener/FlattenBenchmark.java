@@ -0,0 +1,118 @@
+package me.shedaniel.modflattener;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the flattening pipeline on a {@link SyntheticModpack}. Run with {@code gradle jmh}, the gc profiler
+ * reports the allocation rate next to the throughput.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FlattenBenchmark {
+    @Param("50")
+    public int jarCount;
+    @Param("2")
+    public int nestingDepth;
+    @Param("0.5")
+    public double duplicateRatio;
+    @Param("262144")
+    public int jarSize;
+    @Param({"DEFLATED", "STORED"})
+    public String nestedMethod;
+
+    private File root;
+    private File mods;
+    private List<File> files;
+    private Map<String, List<ModJar>> catalog;
+    private List<ModJar> selected;
+    private PrintStream out;
+    private int counter;
+
+    @Setup
+    public void setup() throws Throwable {
+        // The pipeline logs every jar, which would otherwise dominate the measurements
+        out = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+        root = Files.createTempDirectory("modpacks-flattener-jmh").toFile();
+        mods = new File(root, "mods");
+        new SyntheticModpack(nestingDepth, duplicateRatio, jarSize, nestedMethod.equals("STORED")).generate(mods, jarCount);
+        files = new ArrayList<>(Arrays.asList(mods.listFiles()));
+        catalog = new LinkedHashMap<>();
+        for (ModJar jar : readJars(newMain())) {
+            catalog.computeIfAbsent(jar.modId(), id -> new ArrayList<>()).add(jar);
+        }
+        Main main = newMain();
+        main.catalog.putAll(catalog);
+        selected = main.selectMods();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        System.setOut(out);
+        Files.walk(root.toPath()).sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+    }
+
+    private Main newMain() {
+        return new Main(Flattener.builder().input(mods).output(new File(root, "flattenedMods")).threads(1).cache(false).build(), false);
+    }
+
+    private List<ModJar> readJars(Main main) throws IOException {
+        List<ModJar> jars = new ArrayList<>();
+        for (File file : files) {
+            jars.addAll(main.readJar(file));
+        }
+        return jars;
+    }
+
+    @Benchmark
+    public List<ModJar> readJars() throws IOException {
+        return readJars(newMain());
+    }
+
+    @Benchmark
+    public List<ModJar> selectMods() {
+        Main main = newMain();
+        main.catalog.putAll(catalog);
+        return main.selectMods();
+    }
+
+    @Benchmark
+    public void clearJIJStatus() throws IOException {
+        Main main = newMain();
+        File output = new File(root, "clear-" + counter++);
+        output.mkdirs();
+        for (ModJar jar : selected) {
+            main.clearJIJStatus(jar, new File(output, jar.name));
+        }
+        for (File file : output.listFiles()) {
+            Files.delete(file.toPath());
+        }
+        Files.delete(output.toPath());
+    }
+
+    @Benchmark
+    public void flatten() throws Throwable {
+        newMain().flatten();
+    }
+}
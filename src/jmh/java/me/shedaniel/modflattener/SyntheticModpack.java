@@ -0,0 +1,98 @@
+package me.shedaniel.modflattener;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Generates a deterministic modpack for benchmarking. Every depth-0 jar embeds a chain of nested libraries,
+ * and at every level the library is either shared across the pack (byte-identical) or unique to the jar.
+ */
+final class SyntheticModpack {
+    private static final long TIME = 1577836800000L;
+    private static final int CHUNK = 16 * 1024;
+
+    private final int nestingDepth;
+    private final double duplicateRatio;
+    private final int jarSize;
+    private final boolean stored;
+    private final Map<Integer, byte[]> sharedLibraries = new HashMap<>();
+    private final Random random = new Random(0);
+
+    /**
+     * @param nestingDepth   how deep the nested library chain of every depth-0 jar is
+     * @param duplicateRatio the chance of a nested library being the shared one of its level
+     * @param jarSize        the payload size of every jar, excluding its nested jars
+     * @param stored         whether nested jars are stored instead of deflated
+     */
+    SyntheticModpack(int nestingDepth, double duplicateRatio, int jarSize, boolean stored) {
+        this.nestingDepth = nestingDepth;
+        this.duplicateRatio = duplicateRatio;
+        this.jarSize = jarSize;
+        this.stored = stored;
+    }
+
+    void generate(File mods, int jarCount) throws IOException {
+        mods.mkdirs();
+        for (int i = 0; i < jarCount; i++) {
+            byte[] nested = null;
+            for (int level = nestingDepth; level >= 1; level--) {
+                nested = random.nextDouble() < duplicateRatio ? sharedLibrary(level)
+                        : jar("lib-" + level + "-" + i, "1.0." + i, nested, random.nextLong());
+            }
+            Files.write(new File(mods, "mod-" + i + ".jar").toPath(), jar("mod-" + i, "1.0.0", nested, random.nextLong()));
+        }
+    }
+
+    private byte[] sharedLibrary(int level) throws IOException {
+        byte[] library = sharedLibraries.get(level);
+        if (library == null) {
+            library = jar("lib-" + level, "1.0.0", level < nestingDepth ? sharedLibrary(level + 1) : null, level);
+            sharedLibraries.put(level, library);
+        }
+        return library;
+    }
+
+    private byte[] jar(String modId, String version, byte[] nested, long seed) throws IOException {
+        Random payload = new Random(seed);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(jarSize + (nested == null ? 0 : nested.length) + 1024);
+        try (ZipOutputStream zip = new ZipOutputStream(bytes)) {
+            String nestedName = nested == null ? null : "META-INF/jars/" + modId + "-nested.jar";
+            String json = "{\"schemaVersion\":1,\"id\":\"" + modId + "\",\"version\":\"" + version + "\"" +
+                    (nested == null ? "" : ",\"jars\":[{\"file\":\"" + nestedName + "\"}]") + "}";
+            write(zip, "fabric.mod.json", json.getBytes(StandardCharsets.UTF_8), false);
+            for (int offset = 0, index = 0; offset < jarSize; offset += CHUNK, index++) {
+                byte[] chunk = new byte[Math.min(CHUNK, jarSize - offset)];
+                // A small alphabet keeps the payload compressible, like class files and assets usually are
+                for (int j = 0; j < chunk.length; j++) chunk[j] = (byte) ('a' + payload.nextInt(16));
+                write(zip, "data/" + modId + "/" + index + ".bin", chunk, false);
+            }
+            if (nested != null) write(zip, nestedName, nested, stored);
+        }
+        return bytes.toByteArray();
+    }
+
+    private void write(ZipOutputStream zip, String name, byte[] bytes, boolean stored) throws IOException {
+        ZipEntry entry = new ZipEntry(name);
+        entry.setTime(TIME);
+        if (stored) {
+            CRC32 crc = new CRC32();
+            crc.update(bytes);
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(bytes.length);
+            entry.setCompressedSize(bytes.length);
+            entry.setCrc(crc.getValue());
+        }
+        zip.putNextEntry(entry);
+        zip.write(bytes);
+        zip.closeEntry();
+    }
+}
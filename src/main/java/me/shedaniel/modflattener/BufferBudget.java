@@ -0,0 +1,51 @@
+package me.shedaniel.modflattener;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits how many bytes of inflated nested jars are held on the heap at once.
+ * Payloads above the spill threshold, or not fitting into the budget, are inflated into mapped temp files instead.
+ */
+final class BufferBudget {
+    private final long budget;
+    private final long spillThreshold;
+    private final AtomicLong used = new AtomicLong();
+
+    private BufferBudget(long budget, long spillThreshold) {
+        this.budget = budget;
+        this.spillThreshold = spillThreshold;
+    }
+
+    static BufferBudget unbounded() {
+        return new BufferBudget(Long.MAX_VALUE, Long.MAX_VALUE);
+    }
+
+    static BufferBudget bounded(long budget, long spillThreshold) {
+        if (budget < 0 || spillThreshold < 0)
+            throw new IllegalArgumentException("Buffer budget and spill threshold must not be negative");
+        return new BufferBudget(budget, spillThreshold);
+    }
+
+    /**
+     * Returns whether inflated payloads are released as soon as they are read, instead of being kept for the whole run.
+     */
+    boolean isBounded() {
+        return budget != Long.MAX_VALUE;
+    }
+
+    /**
+     * Reserves {@code bytes} of heap, returns {@code false} if the payload should be spilled to disk instead.
+     */
+    boolean tryReserve(long bytes) {
+        if (bytes > spillThreshold) return false;
+        while (true) {
+            long current = used.get();
+            if (current + bytes > budget) return false;
+            if (used.compareAndSet(current, current + bytes)) return true;
+        }
+    }
+
+    void release(long bytes) {
+        used.addAndGet(-bytes);
+    }
+}
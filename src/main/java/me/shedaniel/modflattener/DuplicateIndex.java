@@ -0,0 +1,161 @@
+package me.shedaniel.modflattener;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+
+/**
+ * Finds classes and resources that several output jars contain byte for byte.
+ * Jars are first indexed from their central directories only, by path, CRC and size. Only the paths that match
+ * there are then confirmed by content hash, so jars without duplicates are never inflated.
+ */
+final class DuplicateIndex {
+    private final Map<String, List<Location>> locations = new HashMap<>();
+    private final Map<String, Map<String, String>> hashes = new HashMap<>();
+
+    /**
+     * Returns whether {@code name} is classpath content that another jar can provide just as well.
+     * Entries at the root of a jar and in {@code META-INF/} describe the jar itself and are never duplicates.
+     */
+    static boolean isIndexed(String name) {
+        return name.indexOf('/') > 0 && !name.endsWith("/") && !name.startsWith("META-INF/");
+    }
+
+    /**
+     * Returns whether an indexed entry may be stripped from a jar when another jar has it. Resources are looked up
+     * in the jar of their own mod, so only classes, which share one class loader, are ever stripped.
+     */
+    static boolean isStrippable(String name) {
+        return name.endsWith(".class");
+    }
+
+    /**
+     * Returns whether {@code archive} is signed, stripping any entry of a signed jar would invalidate it.
+     */
+    static boolean isSigned(ZipArchive archive) {
+        for (ZipArchive.Entry entry : archive.entries) {
+            String name = entry.name.toUpperCase(Locale.ROOT);
+            if (name.startsWith("META-INF/") && (name.endsWith(".SF") || name.endsWith(".RSA") || name.endsWith(".DSA") || name.endsWith(".EC")))
+                return true;
+        }
+        return false;
+    }
+
+    synchronized void add(String jar, ZipArchive archive) {
+        for (ZipArchive.Entry entry : archive.entries) {
+            if (isIndexed(entry.name)) {
+                locations.computeIfAbsent(entry.name, path -> new ArrayList<>(1)).add(new Location(jar, entry.crc, entry.size));
+            }
+        }
+    }
+
+    /**
+     * Returns the paths of every jar that have the same CRC and size in another jar, by jar.
+     */
+    synchronized Map<String, Set<String>> candidates() {
+        Map<String, Set<String>> candidates = new HashMap<>();
+        for (Map.Entry<String, List<Location>> entry : locations.entrySet()) {
+            List<Location> list = entry.getValue();
+            if (list.size() < 2) continue;
+            for (Location location : list) {
+                for (Location other : list) {
+                    if (other != location && other.crc == location.crc && other.size == location.size) {
+                        candidates.computeIfAbsent(location.jar, jar -> new HashSet<>()).add(entry.getKey());
+                        break;
+                    }
+                }
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * Records the content hash of a candidate path in {@code jar}.
+     */
+    synchronized void confirm(String jar, String path, String hash) {
+        hashes.computeIfAbsent(path, p -> new HashMap<>()).put(jar, hash);
+    }
+
+    /**
+     * Returns every confirmed duplicate, ordered by path. The jars of a duplicate are sorted by name.
+     */
+    synchronized List<Duplicate> duplicates() {
+        List<Duplicate> duplicates = new ArrayList<>();
+        for (Map.Entry<String, Map<String, String>> entry : new TreeMap<>(hashes).entrySet()) {
+            Map<String, List<String>> jarsByHash = new TreeMap<>();
+            for (Map.Entry<String, String> jar : entry.getValue().entrySet()) {
+                jarsByHash.computeIfAbsent(jar.getValue(), hash -> new ArrayList<>()).add(jar.getKey());
+            }
+            for (List<String> jars : jarsByHash.values()) {
+                if (jars.size() < 2) continue;
+                Collections.sort(jars);
+                long size = 0;
+                for (Location location : locations.get(entry.getKey())) {
+                    if (location.jar.equals(jars.get(0))) size = location.size;
+                }
+                duplicates.add(new Duplicate(entry.getKey(), size, jars));
+            }
+        }
+        return duplicates;
+    }
+
+    static void write(File file, List<Duplicate> duplicates, Map<String, Set<String>> stripped) throws IOException {
+        JsonObject report = new JsonObject();
+        long redundantBytes = 0;
+        JsonArray array = new JsonArray();
+        for (Duplicate duplicate : duplicates) {
+            redundantBytes += duplicate.size * (duplicate.jars.size() - 1);
+            JsonObject object = new JsonObject();
+            object.addProperty("path", duplicate.path);
+            object.addProperty("size", duplicate.size);
+            JsonArray jars = new JsonArray();
+            JsonArray strippedFrom = new JsonArray();
+            for (String jar : duplicate.jars) {
+                jars.add(jar);
+                if (stripped.getOrDefault(jar, Collections.emptySet()).contains(duplicate.path)) strippedFrom.add(jar);
+            }
+            object.add("jars", jars);
+            object.add("strippedFrom", strippedFrom);
+            array.add(object);
+        }
+        report.addProperty("redundantBytes", redundantBytes);
+        report.add("duplicates", array);
+        try (Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+            new GsonBuilder().setPrettyPrinting().disableHtmlEscaping().create().toJson(report, writer);
+        }
+    }
+
+    private static final class Location {
+        private final String jar;
+        private final long crc;
+        private final long size;
+
+        private Location(String jar, long crc, long size) {
+            this.jar = jar;
+            this.crc = crc;
+            this.size = size;
+        }
+    }
+
+    static final class Duplicate {
+        final String path;
+        final long size;
+        /**
+         * The output jars containing this exact content, sorted by name.
+         */
+        final List<String> jars;
+
+        private Duplicate(String path, long size, List<String> jars) {
+            this.path = path;
+            this.size = size;
+            this.jars = jars;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package me.shedaniel.modflattener;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Lists every output jar with the metadata of the jar it was flattened from, so tools can tell what a flattened
+ * mods folder contains without opening any of its jars.
+ */
+final class FlattenManifest {
+    static final String FILE_NAME = "flatten-manifest.json";
+
+    private final Map<String, JsonObject> jars = new TreeMap<>();
+
+    /**
+     * Records the output jar of {@code jar}, {@code size} bytes with the SHA-256 {@code hash}.
+     */
+    synchronized void add(ModJar jar, long size, String hash) {
+        JsonObject object = new JsonObject();
+        object.addProperty("file", jar.name);
+        object.addProperty("id", jar.modId());
+        object.addProperty("version", jar.version());
+        object.addProperty("size", size);
+        object.addProperty("hash", hash);
+        object.addProperty("source", jar.path);
+        object.addProperty("depth", jar.depth);
+        jars.put(jar.name, object);
+    }
+
+    /**
+     * Writes the jars ordered by file name, through a temp file so readers never see a partial manifest.
+     */
+    synchronized void write(File file) throws IOException {
+        JsonArray array = new JsonArray();
+        jars.values().forEach(array::add);
+        JsonObject manifest = new JsonObject();
+        manifest.addProperty("tool", MetadataCache.toolVersion());
+        manifest.add("jars", array);
+        File tmp = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8)) {
+            new GsonBuilder().disableHtmlEscaping().create().toJson(manifest, writer);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+}
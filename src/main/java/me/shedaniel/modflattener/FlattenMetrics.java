@@ -0,0 +1,141 @@
+package me.shedaniel.modflattener;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects timing and I/O counters per phase of a flattening. Phases run one after another,
+ * so counters are always recorded into the phase that is currently running.
+ */
+final class FlattenMetrics {
+    private static final int SLOWEST_JARS = 10;
+
+    private final List<Phase> phases = new ArrayList<>();
+    private final long start = System.nanoTime();
+    private volatile Phase current = new Phase("setup");
+    private long totalNanos;
+
+    void begin(String name) {
+        end();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) pool.resetPeakUsage();
+        }
+        current = new Phase(name);
+    }
+
+    void end() {
+        Phase phase = current;
+        if (phase.ended) return;
+        phase.ended = true;
+        phase.wallNanos = System.nanoTime() - phase.start;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) phase.peakHeap += pool.getPeakUsage().getUsed();
+        }
+        phases.add(phase);
+        totalNanos = System.nanoTime() - start;
+    }
+
+    void bytesRead(long bytes) {
+        current.bytesRead.add(bytes);
+    }
+
+    void bytesWritten(long bytes) {
+        current.bytesWritten.add(bytes);
+    }
+
+    void entryInflated() {
+        current.entriesInflated.increment();
+    }
+
+    void jarParsed() {
+        current.jarsParsed.increment();
+    }
+
+    void jsonParsed(long nanos) {
+        current.jsonParseNanos.add(nanos);
+    }
+
+    /**
+     * Records the time spent on a single jar in the current phase.
+     */
+    void jarTime(String jar, long nanos) {
+        current.jarNanos.computeIfAbsent(jar, name -> new LongAdder()).add(nanos);
+    }
+
+    List<String> summary() {
+        List<String> lines = new ArrayList<>();
+        for (Phase phase : phases) {
+            lines.add(phase.name + ": " + TimeUnit.NANOSECONDS.toMillis(phase.wallNanos) + " ms, "
+                    + phase.jarsParsed.sum() + " jars parsed, " + phase.entriesInflated.sum() + " entries inflated");
+        }
+        return lines;
+    }
+
+    void write(File file) throws IOException {
+        JsonObject report = new JsonObject();
+        report.addProperty("totalMillis", TimeUnit.NANOSECONDS.toMillis(totalNanos));
+        JsonArray phasesArray = new JsonArray();
+        JsonArray slowest = new JsonArray();
+        for (Phase phase : phases) {
+            JsonObject object = new JsonObject();
+            object.addProperty("name", phase.name);
+            object.addProperty("wallMillis", TimeUnit.NANOSECONDS.toMillis(phase.wallNanos));
+            object.addProperty("bytesRead", phase.bytesRead.sum());
+            object.addProperty("bytesWritten", phase.bytesWritten.sum());
+            object.addProperty("entriesInflated", phase.entriesInflated.sum());
+            object.addProperty("jarsParsed", phase.jarsParsed.sum());
+            object.addProperty("jsonParseMillis", TimeUnit.NANOSECONDS.toMillis(phase.jsonParseNanos.sum()));
+            object.addProperty("peakHeapBytes", phase.peakHeap);
+            phasesArray.add(object);
+            phase.jarNanos.entrySet().stream()
+                    .sorted((a, b) -> Long.compare(b.getValue().sum(), a.getValue().sum()))
+                    .limit(SLOWEST_JARS)
+                    .forEach(entry -> {
+                        JsonObject jar = new JsonObject();
+                        jar.addProperty("phase", phase.name);
+                        jar.addProperty("jar", entry.getKey());
+                        jar.addProperty("millis", TimeUnit.NANOSECONDS.toMillis(entry.getValue().sum()));
+                        slowest.add(jar);
+                    });
+        }
+        report.add("phases", phasesArray);
+        report.add("slowestJars", slowest);
+        try (Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+            new GsonBuilder().setPrettyPrinting().create().toJson(report, writer);
+        }
+    }
+
+    private static final class Phase {
+        private final String name;
+        private final long start = System.nanoTime();
+        private final LongAdder bytesRead = new LongAdder();
+        private final LongAdder bytesWritten = new LongAdder();
+        private final LongAdder entriesInflated = new LongAdder();
+        private final LongAdder jarsParsed = new LongAdder();
+        private final LongAdder jsonParseNanos = new LongAdder();
+        private final Map<String, LongAdder> jarNanos = new ConcurrentHashMap<>();
+        private long wallNanos;
+        private long peakHeap;
+        private boolean ended;
+
+        private Phase(String name) {
+            this.name = name;
+        }
+    }
+}
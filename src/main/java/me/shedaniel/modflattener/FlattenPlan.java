@@ -0,0 +1,79 @@
+package me.shedaniel.modflattener;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The outcome of a flattening that only read metadata: which jar is selected for every mod id,
+ * which jars it competed against, and how large the flattened mods folder would be.
+ */
+final class FlattenPlan {
+    private final long originalSize;
+    private final Map<ModJar, Long> projectedSizes = new HashMap<>();
+    private final JsonArray mods = new JsonArray();
+    private long projectedSize;
+
+    FlattenPlan(long originalSize) {
+        this.originalSize = originalSize;
+    }
+
+    /**
+     * Records that {@code jar} would be flattened into a jar of about {@code projectedSize} bytes.
+     */
+    void output(ModJar jar, long projectedSize) {
+        projectedSizes.put(jar, projectedSize);
+        this.projectedSize += projectedSize;
+    }
+
+    void mod(String modId, List<ModJar> candidates, FlattenState.ModState selection) {
+        JsonObject mod = new JsonObject();
+        mod.addProperty("id", modId);
+        JsonArray selected = new JsonArray();
+        JsonArray competing = new JsonArray();
+        for (ModJar jar : candidates) {
+            JsonObject object = new JsonObject();
+            object.addProperty("name", jar.name);
+            object.addProperty("path", jar.path);
+            object.addProperty("version", jar.version());
+            object.addProperty("depth", jar.depth);
+            Long size = projectedSizes.get(jar);
+            if (size != null) {
+                object.addProperty("projectedSize", size);
+                selected.add(object);
+            } else {
+                competing.add(object);
+            }
+        }
+        mod.add("selected", selected);
+        mod.add("competing", competing);
+        mod.addProperty("forced", selection != null && selection.forced);
+        JsonArray warnings = new JsonArray();
+        if (selection != null) selection.warnings.forEach(warnings::add);
+        mod.add("warnings", warnings);
+        mods.add(mod);
+    }
+
+    long projectedSize() {
+        return projectedSize;
+    }
+
+    void write(File file) throws IOException {
+        JsonObject plan = new JsonObject();
+        plan.addProperty("originalSize", originalSize);
+        plan.addProperty("projectedSize", projectedSize);
+        plan.add("mods", mods);
+        try (Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+            new GsonBuilder().setPrettyPrinting().disableHtmlEscaping().create().toJson(plan, writer);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package me.shedaniel.modflattener;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Records how the flattened mods folder was built, so an incremental run only redoes what changed.
+ * For every mod id it keeps the candidates it was selected from, and for every output jar the input it came from.
+ */
+final class FlattenState {
+    static final String FILE_NAME = ".modpacks-flattener-state.json";
+    /**
+     * Bump this whenever the selection or the output format changes, older states then cause a full rebuild.
+     */
+    private static final int FORMAT = 3;
+    private static final Gson GSON = new Gson();
+
+    private int format = FORMAT;
+    private String tool = MetadataCache.toolVersion();
+    final Map<String, ModState> mods = new ConcurrentHashMap<>();
+    final Map<String, OutputState> outputs = new ConcurrentHashMap<>();
+
+    /**
+     * Loads the state of {@code flattenedMods}, or returns {@code null} if there is no usable state.
+     */
+    static FlattenState load(File flattenedMods) {
+        File file = new File(flattenedMods, FILE_NAME);
+        if (!file.isFile()) return null;
+        try (Reader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            FlattenState state = GSON.fromJson(reader, FlattenState.class);
+            if (state == null || state.format != FORMAT || !MetadataCache.toolVersion().equals(state.tool)
+                    || state.mods == null || state.outputs == null)
+                return null;
+            FlattenState copy = new FlattenState();
+            copy.mods.putAll(state.mods);
+            copy.outputs.putAll(state.outputs);
+            return copy;
+        } catch (IOException | JsonParseException ignored) {
+            return null;
+        }
+    }
+
+    void save(File flattenedMods) throws IOException {
+        File file = new File(flattenedMods, FILE_NAME);
+        File tmp = new File(flattenedMods, FILE_NAME + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8)) {
+            GSON.toJson(this, writer);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Returns whether {@code file} is still exactly the output recorded for {@code jar}, repacked at {@code repackLevel}
+     * and with the duplicate classes of the {@code stripped} fingerprint removed.
+     */
+    boolean isUpToDate(File file, ModJar jar, int repackLevel, String stripped) {
+        OutputState output = outputs.get(file.getName());
+        return output != null && output.hash.equals(jar.content.hash) && output.source.equals(jar.path)
+                && output.repack == repackLevel && Objects.equals(output.stripped, stripped)
+                && file.isFile() && file.length() == output.size && file.lastModified() == output.lastModified;
+    }
+
+    /**
+     * Returns the SHA-256 of the recorded output {@code file}, {@code null} if there is none.
+     */
+    String outputHash(File file) {
+        OutputState output = outputs.get(file.getName());
+        return output == null ? null : output.outputHash;
+    }
+
+    void putOutput(File file, ModJar jar, int repackLevel, String stripped, String outputHash) {
+        OutputState output = new OutputState();
+        output.repack = repackLevel;
+        output.stripped = stripped;
+        output.modId = jar.modId();
+        output.hash = jar.content.hash;
+        output.source = jar.path;
+        output.outputHash = outputHash;
+        output.size = file.length();
+        output.lastModified = file.lastModified();
+        outputs.put(file.getName(), output);
+    }
+
+    static class ModState {
+        /**
+         * A fingerprint of every candidate jar of the mod id, in catalog order.
+         */
+        String candidates;
+        /**
+         * The paths of the selected jars, see {@link ModJar#path}.
+         */
+        List<String> selected;
+        List<String> warnings;
+        /**
+         * Whether the selection was forced, see {@link ModResolver.Decision#forced}.
+         */
+        boolean forced;
+    }
+
+    static class OutputState {
+        String modId;
+        /**
+         * The content hash of the input jar this output was written from.
+         */
+        String hash;
+        /**
+         * The path of the input jar this output was written from, see {@link ModJar#path}.
+         */
+        String source;
+        /**
+         * The deflate level the output was repacked with, {@code -1} if it was not repacked.
+         */
+        int repack;
+        /**
+         * A fingerprint of the duplicate classes stripped from the output, {@code null} if none were.
+         */
+        String stripped;
+        /**
+         * The SHA-256 of the output jar itself.
+         */
+        String outputHash;
+        long size;
+        long lastModified;
+    }
+}
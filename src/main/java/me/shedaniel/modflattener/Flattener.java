@@ -0,0 +1,354 @@
+package me.shedaniel.modflattener;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Flattens the jars of one or more mods folders into a single folder, for use from launchers or build tools.
+ * A flattener can be run any number of times, later runs reuse the metadata cache it already loaded.
+ *
+ * <pre>{@code
+ * Flattener flattener = Flattener.builder()
+ *         .input(new File("mods"))
+ *         .output(new File("flattenedMods"))
+ *         .exclude("*-dev.jar")
+ *         .build();
+ * flattener.flatten();
+ * }</pre>
+ */
+public final class Flattener {
+    static final String CACHE_FILE_NAME = ".modpacks-flattener-cache.json";
+    static final String STORE_FOLDER_NAME = ".modpacks-flattener-store";
+    /**
+     * How long the mods folders have to be quiet before {@link #watch()} flattens again, copying a jar fires several events.
+     */
+    private static final long SETTLE_MILLIS = 500;
+
+    final List<File> inputs;
+    final File output;
+    final List<PathMatcher> exclusions;
+    final int threads;
+    /**
+     * Where the metadata cache is stored, {@code null} if it is disabled.
+     */
+    final File cacheFile;
+    final boolean incremental;
+    final boolean links;
+    /**
+     * The deflate level output jars are repacked with, {@code -1} if they are not repacked.
+     */
+    final int repackLevel;
+    /**
+     * The archive to bundle the flattened jars into instead of the output folder, {@code null} if they are not bundled.
+     */
+    final File bundle;
+    final boolean findDuplicates;
+    final boolean stripDuplicates;
+    final BufferBudget budget;
+    /**
+     * The folder cleared jars are kept in by content and linked from, {@code null} if every jar is cleared again.
+     */
+    final File store;
+    private MetadataCache cache;
+
+    private Flattener(Builder builder, BufferBudget budget) {
+        this.inputs = Collections.unmodifiableList(new ArrayList<>(builder.inputs));
+        this.output = builder.output != null ? builder.output : new File(inputs.get(0), "flattenedMods");
+        List<PathMatcher> exclusions = new ArrayList<>();
+        for (String glob : builder.exclusions) {
+            exclusions.add(FileSystems.getDefault().getPathMatcher("glob:" + glob));
+        }
+        this.exclusions = Collections.unmodifiableList(exclusions);
+        this.threads = builder.threads;
+        this.store = builder.store;
+        this.cacheFile = !builder.cache ? null : new File(store != null ? store : inputs.get(0), CACHE_FILE_NAME);
+        this.incremental = builder.incremental;
+        this.links = builder.links;
+        this.repackLevel = builder.repackLevel;
+        this.bundle = builder.bundle;
+        this.findDuplicates = builder.findDuplicates || builder.stripDuplicates;
+        this.stripDuplicates = builder.stripDuplicates;
+        this.budget = budget;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public File getOutput() {
+        return output;
+    }
+
+    /**
+     * Flattens the input folders into the output folder.
+     */
+    public synchronized void flatten() throws IOException {
+        flatten(incremental);
+    }
+
+    /**
+     * Resolves which jars would be flattened and writes the plan to {@code planFile}, without writing any jar.
+     */
+    public synchronized void plan(File planFile) throws IOException {
+        try {
+            new Main(this, false).plan(planFile);
+        } catch (IOException | RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IOException(t);
+        }
+    }
+
+    /**
+     * Flattens the input folders, then flattens them again incrementally whenever a jar in them is added, changed or removed.
+     * This blocks until the thread is interrupted, failed runs are reported and do not stop the watching.
+     */
+    public void watch() throws IOException, InterruptedException {
+        try (WatchService watcher = FileSystems.getDefault().newWatchService()) {
+            for (File input : inputs) {
+                input.toPath().register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+                        StandardWatchEventKinds.ENTRY_MODIFY);
+            }
+            flatten();
+            while (true) {
+                System.out.println();
+                System.out.println("Watching " + inputs.size() + " folder(s) for changes");
+                boolean changed = pollJars(watcher.take());
+                WatchKey key;
+                while ((key = watcher.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+                    changed |= pollJars(key);
+                }
+                if (!changed) continue;
+                try {
+                    synchronized (this) {
+                        flatten(true);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    System.out.println("[WARN] Flattening failed, waiting for the next change: " + e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns whether any of the events of {@code key} may concern a jar, and re-arms the key.
+     */
+    private static boolean pollJars(WatchKey key) {
+        boolean jars = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW || event.context().toString().endsWith(".jar"))
+                jars = true;
+        }
+        key.reset();
+        return jars;
+    }
+
+    private void flatten(boolean incremental) throws IOException {
+        try {
+            new Main(this, incremental).flatten();
+        } catch (IOException | RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IOException(t);
+        }
+    }
+
+    /**
+     * Returns the metadata cache shared by every run of this flattener, loading it on first use.
+     */
+    synchronized MetadataCache cache() {
+        if (cacheFile == null) return MetadataCache.empty();
+        if (cache == null) cache = MetadataCache.load(cacheFile);
+        return cache;
+    }
+
+    boolean isExcluded(String jarName) {
+        Path name = Paths.get(jarName);
+        for (PathMatcher exclusion : exclusions) {
+            if (exclusion.matches(name)) return true;
+        }
+        return false;
+    }
+
+    public static final class Builder {
+        private final List<File> inputs = new ArrayList<>();
+        private final List<String> exclusions = new ArrayList<>();
+        private File output;
+        private int threads = Runtime.getRuntime().availableProcessors();
+        private boolean cache = true;
+        private boolean incremental;
+        private boolean links = true;
+        private int repackLevel = -1;
+        private File bundle;
+        private boolean findDuplicates;
+        private boolean stripDuplicates;
+        private long memoryBudget = -1;
+        private long spillThreshold = -1;
+        private File store;
+
+        private Builder() {
+        }
+
+        /**
+         * Adds a folder to read jars from, at least one is required.
+         * The metadata cache is kept in the first folder, or in the {@link #store} if there is one.
+         */
+        public Builder input(File folder) {
+            inputs.add(folder);
+            return this;
+        }
+
+        /**
+         * Sets the folder to flatten into, defaults to {@code flattenedMods} in the first input folder. It must not be
+         * or contain an input folder, and must be empty unless it was written by an earlier run.
+         */
+        public Builder output(File folder) {
+            this.output = folder;
+            return this;
+        }
+
+        /**
+         * Skips jars whose file name matches {@code glob}, together with the jars nested in them.
+         */
+        public Builder exclude(String glob) {
+            exclusions.add(glob);
+            return this;
+        }
+
+        public Builder threads(int threads) {
+            this.threads = threads;
+            return this;
+        }
+
+        /**
+         * Sets whether jar metadata is cached across runs, defaults to {@code true}.
+         */
+        public Builder cache(boolean cache) {
+            this.cache = cache;
+            return this;
+        }
+
+        /**
+         * Sets whether unchanged outputs of the previous run are kept, instead of rebuilding the output folder.
+         */
+        public Builder incremental(boolean incremental) {
+            this.incremental = incremental;
+            return this;
+        }
+
+        /**
+         * Sets whether unmodified jars are hard linked into the output folder instead of copied, defaults to {@code true}.
+         */
+        public Builder links(boolean links) {
+            this.links = links;
+            return this;
+        }
+
+        /**
+         * Recompresses every output jar at the deflate {@code level}, from 0 (store only) to 9, with its entries sorted
+         * and fixed timestamps, so the same mods always give the same bytes. Jars are then never linked.
+         */
+        public Builder repack(int level) {
+            if (level < 0 || level > 9)
+                throw new IllegalArgumentException("Deflate level must be between 0 and 9: " + level);
+            this.repackLevel = level;
+            return this;
+        }
+
+        /**
+         * Writes the flattened jars into the single zip {@code archive} instead of the output folder.
+         * The archive is always rebuilt as a whole, so this cannot be combined with {@link #incremental}.
+         */
+        public Builder bundle(File archive) {
+            this.bundle = archive;
+            return this;
+        }
+
+        /**
+         * Sets whether the classes and resources that several output jars contain byte for byte are reported,
+         * in {@code flatten-duplicates.json} next to the output.
+         */
+        public Builder findDuplicates(boolean findDuplicates) {
+            this.findDuplicates = findDuplicates;
+            return this;
+        }
+
+        /**
+         * Sets whether duplicate classes are stripped from every output jar but the first by name that is always loaded,
+         * implies {@link #findDuplicates}. Resources, signed jars and classes no always loaded jar has are never stripped.
+         */
+        public Builder stripDuplicates(boolean stripDuplicates) {
+            this.stripDuplicates = stripDuplicates;
+            return this;
+        }
+
+        /**
+         * Limits the heap used for inflated nested jars to {@code bytes}, defaults to 256 MiB once any limit is set.
+         */
+        public Builder memoryBudget(long bytes) {
+            this.memoryBudget = bytes;
+            return this;
+        }
+
+        /**
+         * Inflates nested jars larger than {@code bytes} into temp files, defaults to 16 MiB once any limit is set.
+         */
+        public Builder spillThreshold(long bytes) {
+            this.spillThreshold = bytes;
+            return this;
+        }
+
+        /**
+         * Keeps every cleared jar in {@code folder} by its content, and links the output jars from there. Flatteners
+         * sharing a store, such as one per pack of a build server, then clear every distinct jar only once.
+         */
+        public Builder store(File folder) {
+            this.store = folder;
+            return this;
+        }
+
+        public Flattener build() {
+            if (inputs.isEmpty())
+                throw new IllegalStateException("At least one input folder is required");
+            if (threads < 1)
+                throw new IllegalArgumentException("Thread count must be at least 1: " + threads);
+            if (bundle != null && incremental)
+                throw new IllegalArgumentException("A bundle cannot be flattened incrementally");
+            if (bundle != null && store != null)
+                throw new IllegalArgumentException("A bundle cannot be linked from a store");
+            File output = this.output != null ? this.output : new File(inputs.get(0), "flattenedMods");
+            for (File input : inputs) {
+                if (bundle == null && contains(output, input))
+                    throw new IllegalArgumentException("The output folder cannot be or contain an input folder: " + output);
+                if (store != null && contains(store, input))
+                    throw new IllegalArgumentException("The store cannot be or contain an input folder: " + store);
+            }
+            if (store != null && (contains(store, output) || contains(output, store)))
+                throw new IllegalArgumentException("The store and the output folder cannot contain each other: " + store);
+            BufferBudget budget = BufferBudget.unbounded();
+            if (memoryBudget >= 0 || spillThreshold >= 0) {
+                budget = BufferBudget.bounded(memoryBudget >= 0 ? memoryBudget : 256L * 1024 * 1024,
+                        spillThreshold >= 0 ? spillThreshold : 16L * 1024 * 1024);
+            }
+            return new Flattener(this, budget);
+        }
+
+        /**
+         * Returns whether {@code folder} is {@code other} or one of its parents, comparing canonical paths so that
+         * relative paths, {@code .} and {@code ..} cannot hide it.
+         */
+        private static boolean contains(File folder, File other) {
+            try {
+                return other.getCanonicalFile().toPath().startsWith(folder.getCanonicalFile().toPath());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package me.shedaniel.modflattener;
+
+import net.fabricmc.loader.api.SemanticVersion;
+import net.fabricmc.loader.util.version.VersionParsingException;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The payload of a jar, shared by every {@link ModJar} with the same content hash.
+ * A library embedded dozens of times across a pack is only parsed once, its nested jars included.
+ */
+final class JarContent {
+    final String hash;
+    /**
+     * The mod id of this jar, or {@code "invalid"} if the jar does not have a readable {@code fabric.mod.json}.
+     */
+    final String modId;
+    final String version;
+    /**
+     * The parsed {@link #version}, {@code null} if it is not a semantic version.
+     */
+    final SemanticVersion semver;
+    final long size;
+    /**
+     * The nested jars of this jar, keyed by their entry name.
+     */
+    final List<Map.Entry<String, JarContent>> nestedJars;
+    private final ByteBuffer bytes;
+    private final File origin;
+    private final List<String> entries;
+
+    /**
+     * Creates a content backed by {@code bytes}, usually a mapped depth-0 jar or a slice of it.
+     */
+    JarContent(String hash, String modId, String version, ByteBuffer bytes, List<Map.Entry<String, JarContent>> nestedJars) {
+        this(hash, modId, version, bytes.remaining(), nestedJars, bytes, null, null);
+    }
+
+    /**
+     * Creates a content restored from the {@link MetadataCache}, its bytes are only read when they are needed.
+     *
+     * @param origin  the depth-0 jar containing this content
+     * @param entries the entry names leading from {@code origin} to this content, empty if it is {@code origin} itself
+     */
+    JarContent(String hash, String modId, String version, long size, List<Map.Entry<String, JarContent>> nestedJars, File origin, List<String> entries) {
+        this(hash, modId, version, size, nestedJars, null, origin, entries);
+    }
+
+    private JarContent(String hash, String modId, String version, long size, List<Map.Entry<String, JarContent>> nestedJars,
+                       ByteBuffer bytes, File origin, List<String> entries) {
+        this.hash = hash;
+        this.modId = modId;
+        this.version = version;
+        this.semver = parseSemver(version);
+        this.size = size;
+        this.nestedJars = nestedJars;
+        this.bytes = bytes;
+        this.origin = origin;
+        this.entries = entries;
+    }
+
+    private static SemanticVersion parseSemver(String version) {
+        if (version == null) return null;
+        try {
+            return SemanticVersion.parse(version);
+        } catch (VersionParsingException ignored) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the bytes of this jar, the returned buffer can be freely consumed by the caller.
+     * Contents that are not kept are read again from their origin, with every nested jar on the way read by {@code nested}.
+     */
+    ByteBuffer bytes(FlattenMetrics metrics, NestedReader nested) throws IOException {
+        if (bytes != null) return bytes.duplicate();
+        ByteBuffer jar = ZipArchive.map(origin);
+        metrics.bytesRead(jar.remaining());
+        for (String name : entries) {
+            ZipArchive archive = ZipArchive.read(jar);
+            ZipArchive.Entry entry = archive.get(name);
+            if (entry == null)
+                throw new FileNotFoundException(name + " in " + origin.getAbsolutePath());
+            jar = nested.read(archive, entry);
+        }
+        return jar;
+    }
+
+    /**
+     * Reads the uncompressed data of a nested jar, see {@link #bytes}.
+     */
+    interface NestedReader {
+        ByteBuffer read(ZipArchive archive, ZipArchive.Entry entry) throws IOException;
+    }
+}
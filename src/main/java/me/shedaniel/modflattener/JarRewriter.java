@@ -0,0 +1,258 @@
+package me.shedaniel.modflattener;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipException;
+
+/**
+ * Rewrites a {@link ZipArchive} in a single sequential pass. Kept entries are copied as stored in the source archive,
+ * without inflating and deflating them again. Only replaced entries are compressed, unless the archive is repacked.
+ */
+final class JarRewriter {
+    private static final int DATA_DESCRIPTOR_FLAG = 1 << 3;
+    private static final int UTF8_FLAG = 1 << 11;
+    /**
+     * The manifest first, as {@link java.util.jar.JarInputStream} expects, then every other entry by name.
+     */
+    private static final Comparator<ZipArchive.Entry> REPACK_ORDER = Comparator
+            .comparingInt((ZipArchive.Entry entry) -> entry.name.equals("META-INF/") ? 0 : entry.name.equals("META-INF/MANIFEST.MF") ? 1 : 2)
+            .thenComparing(entry -> entry.name);
+    /**
+     * Extensions of formats that are usually compressed already, these are only deflated again if their source entry
+     * shows that they compress.
+     */
+    private static final List<String> COMPRESSED_EXTENSIONS = Arrays.asList(".png", ".jpg", ".jpeg", ".gif", ".webp",
+            ".ogg", ".mp3", ".zip", ".jar", ".gz", ".xz");
+
+    private final WritableByteChannel channel;
+    private final ByteBuffer directory;
+    private long position;
+    private int count;
+
+    private JarRewriter(WritableByteChannel channel, int directoryCapacity) {
+        this.channel = channel;
+        this.directory = ByteBuffer.allocate(directoryCapacity).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Writes the entries of {@code archive} to {@code channel}, in the order of its central directory.
+     *
+     * @param keep         whether an entry is written at all
+     * @param replacements new uncompressed contents of entries, by entry name
+     */
+    static void rewrite(ZipArchive archive, WritableByteChannel channel, Predicate<ZipArchive.Entry> keep,
+                        Map<String, byte[]> replacements) throws IOException {
+        int directoryCapacity = 22;
+        for (ZipArchive.Entry entry : archive.entries) {
+            directoryCapacity += archive.centralRecord(entry).remaining() + 46 + entry.name.length() * 4;
+        }
+        JarRewriter rewriter = new JarRewriter(channel, directoryCapacity);
+        for (ZipArchive.Entry entry : archive.entries) {
+            if (!keep.test(entry)) continue;
+            byte[] replacement = replacements.get(entry.name);
+            if (replacement != null) {
+                rewriter.writeDeflated(archive, entry, replacement);
+            } else {
+                rewriter.copy(archive, entry);
+            }
+        }
+        rewriter.finish();
+    }
+
+    /**
+     * Writes the kept entries of {@code archive} to {@code channel} recompressed at {@code level}, in a stable order and
+     * with fixed timestamps, so equal contents always give equal bytes. Entries are compressed in parallel,
+     * on the fork join pool of the calling task, and then written in order.
+     *
+     * @param level the deflate level, {@code 0} stores every entry
+     */
+    static void repack(ZipArchive archive, WritableByteChannel channel, Predicate<ZipArchive.Entry> keep,
+                       Map<String, byte[]> replacements, int level) throws IOException {
+        List<ZipArchive.Entry> entries = archive.entries.stream().filter(keep).sorted(REPACK_ORDER).collect(Collectors.toList());
+        List<Packed> packed;
+        try {
+            packed = entries.parallelStream().map(entry -> pack(archive, entry, replacements.get(entry.name), level))
+                    .collect(Collectors.toList());
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        int directoryCapacity = 22;
+        for (Packed entry : packed) {
+            directoryCapacity += 46 + entry.name.length;
+        }
+        JarRewriter rewriter = new JarRewriter(channel, directoryCapacity);
+        for (Packed entry : packed) {
+            rewriter.writeEntry(entry.name, entry.method, ZipArchive.REPRODUCIBLE_TIME, entry.crc, entry.data, entry.size);
+        }
+        rewriter.finish();
+    }
+
+    private static Packed pack(ZipArchive archive, ZipArchive.Entry entry, byte[] replacement, int level) {
+        byte[] content;
+        try {
+            content = replacement != null ? replacement : archive.read(entry);
+        } catch (ZipException e) {
+            throw new UncheckedIOException(e);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        Packed packed = new Packed(entry.name.getBytes(StandardCharsets.UTF_8), crc.getValue(), content.length);
+        if (level != 0 && !entry.isDirectory() && (replacement != null || isCompressible(entry))) {
+            byte[] compressed = deflate(content, level);
+            if (compressed.length < content.length) {
+                packed.method = ZipArchive.DEFLATED;
+                packed.data = compressed;
+                return packed;
+            }
+        }
+        packed.method = ZipArchive.STORED;
+        packed.data = content;
+        return packed;
+    }
+
+    private static boolean isCompressible(ZipArchive.Entry entry) {
+        String name = entry.name.toLowerCase(Locale.ROOT);
+        if (COMPRESSED_EXTENSIONS.stream().noneMatch(name::endsWith)) return true;
+        return entry.method == ZipArchive.DEFLATED && entry.compressedSize < entry.size * 9 / 10;
+    }
+
+    private void copy(ZipArchive archive, ZipArchive.Entry entry) throws IOException {
+        ByteBuffer record = archive.centralRecord(entry);
+        ByteBuffer data = archive.rawData(entry);
+        byte[] name = new byte[record.getShort(28) & 0xFFFF];
+        ((ByteBuffer) record.duplicate().position(46)).get(name);
+        // The sizes are known from the central directory, so the local header never needs a data descriptor
+        int flags = (record.getShort(8) & 0xFFFF) & ~DATA_DESCRIPTOR_FLAG;
+        long offset = position;
+        ByteBuffer header = ByteBuffer.allocate(30 + name.length).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(ZipArchive.LOCAL_HEADER);
+        header.putShort(record.getShort(6));
+        header.putShort((short) flags);
+        header.putShort((short) entry.method);
+        header.putInt(record.getInt(12));
+        header.putInt((int) entry.crc);
+        header.putInt((int) entry.compressedSize);
+        header.putInt((int) entry.size);
+        header.putShort((short) name.length);
+        header.putShort((short) 0);
+        header.put(name);
+        header.flip();
+        write(header);
+        write(data);
+
+        int start = directory.position();
+        directory.put(record.duplicate());
+        directory.putShort(start + 8, (short) flags);
+        directory.putInt(start + 42, (int) offset);
+        count++;
+    }
+
+    private void writeDeflated(ZipArchive archive, ZipArchive.Entry entry, byte[] content) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        writeEntry(entry.name.getBytes(StandardCharsets.UTF_8), ZipArchive.DEFLATED, archive.centralRecord(entry).getInt(12),
+                crc.getValue(), deflate(content, Deflater.DEFAULT_COMPRESSION), content.length);
+    }
+
+    private void writeEntry(byte[] name, int method, int dosTime, long crc, byte[] data, int size) throws IOException {
+        long offset = position;
+        ByteBuffer header = ByteBuffer.allocate(30 + name.length).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(ZipArchive.LOCAL_HEADER);
+        header.putShort((short) 20);
+        header.putShort((short) UTF8_FLAG);
+        header.putShort((short) method);
+        header.putInt(dosTime);
+        header.putInt((int) crc);
+        header.putInt(data.length);
+        header.putInt(size);
+        header.putShort((short) name.length);
+        header.putShort((short) 0);
+        header.put(name);
+        header.flip();
+        write(header);
+        write(ByteBuffer.wrap(data));
+
+        directory.putInt(ZipArchive.CENTRAL_HEADER);
+        directory.putShort((short) 20);
+        directory.putShort((short) 20);
+        directory.putShort((short) UTF8_FLAG);
+        directory.putShort((short) method);
+        directory.putInt(dosTime);
+        directory.putInt((int) crc);
+        directory.putInt(data.length);
+        directory.putInt(size);
+        directory.putShort((short) name.length);
+        directory.putShort((short) 0);
+        directory.putShort((short) 0);
+        directory.putShort((short) 0);
+        directory.putShort((short) 0);
+        directory.putInt(0);
+        directory.putInt((int) offset);
+        directory.put(name);
+        count++;
+    }
+
+    private void finish() throws IOException {
+        long directoryOffset = position;
+        int directorySize = directory.position();
+        directory.flip();
+        write(directory);
+        ByteBuffer end = ByteBuffer.allocate(22).order(ByteOrder.LITTLE_ENDIAN);
+        end.putInt(ZipArchive.END_HEADER);
+        end.putShort((short) 0);
+        end.putShort((short) 0);
+        end.putShort((short) count);
+        end.putShort((short) count);
+        end.putInt(directorySize);
+        end.putInt((int) directoryOffset);
+        end.putShort((short) 0);
+        end.flip();
+        write(end);
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer);
+        }
+    }
+
+    private static byte[] deflate(byte[] content, int level) {
+        Deflater deflater = new Deflater(level, true);
+        try {
+            deflater.setInput(content);
+            deflater.finish();
+            byte[] buffer = new byte[Math.max(64, content.length + content.length / 1000 + 64)];
+            int length = 0;
+            while (!deflater.finished()) {
+                if (length == buffer.length) buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                length += deflater.deflate(buffer, length, buffer.length - length);
+            }
+            return Arrays.copyOf(buffer, length);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static final class Packed {
+        private final byte[] name;
+        private final long crc;
+        private final int size;
+        private int method;
+        private byte[] data;
+
+        private Packed(byte[] name, long crc, int size) {
+            this.name = name;
+            this.crc = crc;
+            this.size = size;
+        }
+    }
+}
@@ -1,122 +1,438 @@
 package me.shedaniel.modflattener;
 
-import com.google.gson.Gson;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
-import com.google.gson.stream.JsonReader;
-import net.fabricmc.loader.api.SemanticVersion;
-import net.fabricmc.loader.util.version.VersionParsingException;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 
 import java.io.*;
-import java.net.URI;
-import java.nio.charset.Charset;
-import java.nio.file.FileSystems;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
-import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.DecimalFormat;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
 import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
 
 public class Main {
-    private static final Random RANDOM = new Random();
-    private final List<String> warnings = new ArrayList<>();
-    private final String arrow;
-    private final String splitUUID;
-    private final HashMap<String, String> zipProperties;
-    private long ogSize = 0L;
+    /**
+     * How many jars per thread are cleared ahead of the bundle writer.
+     */
+    private static final int BUNDLE_QUEUE_PER_THREAD = 2;
+    /**
+     * How many jars per thread are loaded ahead of the threads reading them.
+     */
+    private static final int READ_AHEAD_PER_THREAD = 2;
+    /**
+     * Bump this whenever the way jars are cleared changes, jars cleared before are then no longer linked from the store.
+     */
+    private static final int STORE_FORMAT = 2;
+    private final List<String> warnings = Collections.synchronizedList(new ArrayList<>());
+    final Map<String, List<ModJar>> catalog = new LinkedHashMap<>();
+    private final Map<String, JarContent> contents = new ConcurrentHashMap<>();
+    private final ThreadLocal<List<String>> taskLog = new ThreadLocal<>();
+    private final LongAdder ogSize = new LongAdder();
+    private final FlattenMetrics metrics = new FlattenMetrics();
+    private final FlattenManifest manifest = new FlattenManifest();
+    private final Flattener flattener;
+    private final boolean incremental;
+    private final List<File> spills = Collections.synchronizedList(new ArrayList<>());
+    private MetadataCache cache = MetadataCache.empty();
+    private FlattenState previousState;
+    private final FlattenState state = new FlattenState();
+    /**
+     * The duplicate classes to strip from every output jar, by output jar name.
+     */
+    private final Map<String, Set<String>> strippedEntries = new HashMap<>();
+    private int step;
 
-    public Main() {
-        this.arrow = generateRandomString(5);
-        this.splitUUID = generateRandomString(7);
-
-        this.zipProperties = new HashMap<>();
-        zipProperties.put("create", "false");
+    Main(Flattener flattener, boolean incremental) {
+        this.flattener = flattener;
+        this.incremental = incremental;
     }
 
     public static void main(String[] args) throws Throwable {
-        File root = new File(System.getProperty("user.dir"));
-        new Main().flatten(root, new File(root, ".removejij"), new File(root, "flattenedMods"));
+        // Options are kept apart from the folders, so that every pack gets a builder of its own
+        List<Consumer<Flattener.Builder>> options = new ArrayList<>();
+        List<File> inputs = new ArrayList<>();
+        List<File> packs = new ArrayList<>();
+        File output = null;
+        boolean hasStore = false;
+        boolean plan = false;
+        boolean watch = false;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--threads") && i + 1 < args.length) {
+                int threads = Integer.parseInt(args[++i]);
+                options.add(builder -> builder.threads(threads));
+            } else if (args[i].equals("--input") && i + 1 < args.length) {
+                inputs.add(new File(args[++i]));
+            } else if (args[i].equals("--output") && i + 1 < args.length) {
+                output = new File(args[++i]);
+            } else if (args[i].equals("--pack") && i + 1 < args.length) {
+                packs.add(new File(args[++i]));
+            } else if (args[i].equals("--store") && i + 1 < args.length) {
+                File store = new File(args[++i]);
+                options.add(builder -> builder.store(store));
+                hasStore = true;
+            } else if (args[i].equals("--exclude") && i + 1 < args.length) {
+                String glob = args[++i];
+                options.add(builder -> builder.exclude(glob));
+            } else if (args[i].equals("--no-cache")) {
+                options.add(builder -> builder.cache(false));
+            } else if (args[i].equals("--incremental")) {
+                options.add(builder -> builder.incremental(true));
+            } else if (args[i].equals("--no-links")) {
+                options.add(builder -> builder.links(false));
+            } else if (args[i].equals("--repack") && i + 1 < args.length) {
+                int level = Integer.parseInt(args[++i]);
+                options.add(builder -> builder.repack(level));
+            } else if (args[i].equals("--bundle") && i + 1 < args.length) {
+                File bundle = new File(args[++i]);
+                options.add(builder -> builder.bundle(bundle));
+            } else if (args[i].equals("--find-duplicates")) {
+                options.add(builder -> builder.findDuplicates(true));
+            } else if (args[i].equals("--strip-duplicates")) {
+                options.add(builder -> builder.stripDuplicates(true));
+            } else if (args[i].equals("--plan")) {
+                plan = true;
+            } else if (args[i].equals("--watch")) {
+                watch = true;
+            } else if (args[i].equals("--memory-budget") && i + 1 < args.length) {
+                long bytes = Long.parseLong(args[++i]) * 1024 * 1024;
+                options.add(builder -> builder.memoryBudget(bytes));
+            } else if (args[i].equals("--spill-threshold") && i + 1 < args.length) {
+                long bytes = Long.parseLong(args[++i]) * 1024 * 1024;
+                options.add(builder -> builder.spillThreshold(bytes));
+            } else {
+                throw new IllegalArgumentException("Unknown argument: " + args[i]);
+            }
+        }
+        if (plan && watch)
+            throw new IllegalArgumentException("--plan and --watch cannot be combined");
+        if (!packs.isEmpty()) {
+            if (!inputs.isEmpty() || output != null || watch)
+                throw new IllegalArgumentException("--pack cannot be combined with --input, --output or --watch");
+            if (!hasStore) {
+                File store = new File(System.getProperty("user.dir"), Flattener.STORE_FOLDER_NAME);
+                options.add(builder -> builder.store(store));
+            }
+            // Packs run one after another, each one finds the jars of the previous ones in the store
+            for (File pack : packs) {
+                Flattener.Builder builder = Flattener.builder().input(pack);
+                for (Consumer<Flattener.Builder> option : options) option.accept(builder);
+                Flattener flattener = builder.build();
+                System.out.println("Pack: " + pack);
+                if (plan) flattener.plan(new File(pack, "flatten-plan.json"));
+                else flattener.flatten();
+            }
+            return;
+        }
+        Flattener.Builder builder = Flattener.builder();
+        for (Consumer<Flattener.Builder> option : options) option.accept(builder);
+        if (inputs.isEmpty()) inputs.add(new File(System.getProperty("user.dir")));
+        inputs.forEach(builder::input);
+        if (output != null) builder.output(output);
+        Flattener flattener = builder.build();
+        if (plan) flattener.plan(new File(flattener.getOutput().getAbsoluteFile().getParentFile(), "flatten-plan.json"));
+        else if (watch) flattener.watch();
+        else flattener.flatten();
     }
 
-    private void flatten(File mods, File tmp, File flattenedMods) throws Throwable {
-        deleteRecursively(tmp);
-        deleteRecursively(flattenedMods);
-        flattenedMods.mkdirs();
-        System.out.println();
-        info("Step 1: Extracting Jars");
-        System.out.println();
-        for (File file : mods.listFiles()) {
-            if (file.isFile() && file.getName().endsWith(".jar")) {
-                if (isJarExcluded(file)) continue;
-                ogSize += file.length();
-                info("Extracting Jar -> " + file.getName());
-                use("Extracting Depth-0 Jars", new FileInputStream(file), stream -> {
-                    countJar(
-                            file.lastModified(),
-                            file.getName(),
-                            stream,
-                            true,
-                            tmp
-                    );
-                });
-                run("Copying Depth-0 Jars", () -> {
-                    String modId = useMapped(new FileInputStream(file), jarBytes -> {
-                        String id = getNullableModId(file.getName(), jarBytes);
-                        if (id != null) return id;
-                        return "invalid";
-                    });
-                    File toFile = new File(new File(tmp, modId),
-                            last(file.getName().split("/")));
-                    toFile.getParentFile().mkdirs();
-                    use(new FileInputStream(file), stream -> {
-                        use(new FileOutputStream(toFile),
-                                writer -> IOUtils.write(IOUtils.toByteArray(stream), writer));
-                    });
-                });
+    void flatten() throws Throwable {
+        File flattenedMods = flattener.output;
+        if (flattener.bundle == null) {
+            if (incremental) previousState = FlattenState.load(flattenedMods);
+            if (previousState == null) clearOutput(flattenedMods);
+            flattenedMods.mkdirs();
+        }
+        ForkJoinPool pool = new ForkJoinPool(flattener.threads);
+        try {
+            if (flattener.bundle != null) bundle(pool, flattener.bundle);
+            else flatten(pool, flattenedMods);
+        } finally {
+            pool.shutdown();
+            for (File spill : spills) {
+                spill.delete();
             }
         }
-        System.out.println();
-        info("Step 2: Clearing JIJ Status");
-        System.out.println();
-        run("Clearing JIJ Status", () -> {
-            for (File modIdFolder : tmp.listFiles()) {
-                if (!modIdFolder.isDirectory())
-                    throw new IllegalStateException("Non directory entry in tmp folder: " + modIdFolder.getAbsolutePath());
-                for (File file : modIdFolder.listFiles()) {
-                    info("Clearing JIJ Status -> " + mods.toPath().relativize(file.toPath()).toString());
-                    clearJIJStatus(file);
-                }
+    }
+
+    /**
+     * Resolves which jars would be flattened and writes the plan to {@code planFile}, without writing any jar.
+     */
+    void plan(File planFile) throws Throwable {
+        ForkJoinPool pool = new ForkJoinPool(flattener.threads);
+        try {
+            List<ModJar> selected = readAndSelect(pool);
+            metrics.begin("plan");
+            List<Long> projectedSizes = parallel(pool, "Projecting Sizes", selected, this::projectedSize);
+            metrics.end();
+            FlattenPlan plan = new FlattenPlan(ogSize.sum());
+            for (int i = 0; i < selected.size(); i++) {
+                plan.output(selected.get(i), projectedSizes.get(i));
             }
+            for (Map.Entry<String, List<ModJar>> entry : catalog.entrySet()) {
+                plan.mod(entry.getKey(), entry.getValue(), state.mods.get(entry.getKey()));
+            }
+            printStats();
+            System.out.println();
+            System.out.println("Would flatten " + readableFileSize(ogSize.sum()) + " to about " + readableFileSize(plan.projectedSize()));
+            run("Writing flatten plan", () -> plan.write(planFile));
+            System.out.println("Plan written to " + planFile.getName());
+        } finally {
+            pool.shutdown();
+            for (File spill : spills) {
+                spill.delete();
+            }
+        }
+    }
+
+    private void flatten(ForkJoinPool pool, File flattenedMods) throws Throwable {
+        List<ModJar> selected = readAndSelect(pool);
+        if (flattener.findDuplicates) findDuplicates(pool, selected, flattenedMods);
+        if (previousState != null)
+            removeStaleOutputs(flattenedMods, selected.stream().map(jar -> jar.name).collect(Collectors.toSet()));
+        metrics.begin("clearJij");
+        step("Clearing JIJ Status");
+        parallel(pool, "Clearing JIJ Status", selected, jar -> {
+            File target = new File(flattenedMods, jar.name);
+            String stripped = strippedFingerprint(jar);
+            String outputHash;
+            if (previousState != null && previousState.isUpToDate(target, jar, flattener.repackLevel, stripped)) {
+                info("Unchanged -> " + jar.path);
+                outputHash = previousState.outputHash(target);
+            } else {
+                info("Clearing JIJ Status -> " + jar.path);
+                Files.deleteIfExists(target.toPath());
+                outputHash = clearJIJStatus(jar, target);
+            }
+            state.putOutput(target, jar, flattener.repackLevel, stripped, outputHash);
+            manifest.add(jar, target.length(), outputHash);
+            return jar;
         });
+        run("Saving flatten state", () -> state.save(flattenedMods));
+        metrics.end();
+        long newSize = Stream.of(flattenedMods.listFiles()).filter(file -> file.isFile() && file.getName().endsWith(".jar"))
+                .mapToLong(File::length).sum();
+        printSummary(flattenedMods, newSize);
+    }
+
+    /**
+     * Streams the selected jars into a single archive, written in name order while later jars are still being cleared.
+     * At most a few jars per thread are cleared ahead of the writer, so memory stays bounded for any pack size.
+     */
+    private void bundle(ForkJoinPool pool, File bundle) throws Throwable {
+        List<ModJar> selected = new ArrayList<>(readAndSelect(pool));
+        selected.sort(Comparator.comparing(jar -> jar.name));
+        if (flattener.findDuplicates) findDuplicates(pool, selected, bundle);
+        metrics.begin("bundle");
+        step("Bundling Jars");
+        File tmp = new File(bundle.getAbsoluteFile().getParentFile(), bundle.getName() + ".tmp");
+        Deque<Future<byte[]>> queue = new ArrayDeque<>();
+        try {
+            use(new ZipOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp.toPath()))), out -> {
+                Iterator<ModJar> jars = selected.iterator();
+                for (ModJar jar : selected) {
+                    while (jars.hasNext() && queue.size() < BUNDLE_QUEUE_PER_THREAD * flattener.threads) {
+                        ModJar next = jars.next();
+                        queue.add(pool.submit(() -> {
+                            info("Clearing JIJ Status -> " + next.path);
+                            byte[] bytes = clearJIJStatus(next);
+                            manifest.add(next, bytes.length, hash(bytes));
+                            return bytes;
+                        }));
+                    }
+                    byte[] bytes;
+                    try {
+                        bytes = queue.poll().get();
+                    } catch (ExecutionException e) {
+                        throw e.getCause();
+                    }
+                    CRC32 crc = new CRC32();
+                    crc.update(bytes);
+                    // Jars are compressed already, storing them keeps the bundle cheap to write and to extract
+                    ZipEntry entry = new ZipEntry(jar.name);
+                    entry.setMethod(ZipEntry.STORED);
+                    entry.setSize(bytes.length);
+                    entry.setCompressedSize(bytes.length);
+                    entry.setCrc(crc.getValue());
+                    // A fixed time, so equal packs give equal bundles
+                    entry.setTime(ZipArchive.javaTime(ZipArchive.REPRODUCIBLE_TIME));
+                    out.putNextEntry(entry);
+                    out.write(bytes);
+                    out.closeEntry();
+                    metrics.bytesWritten(bytes.length);
+                }
+            });
+            Files.move(tmp.toPath(), bundle.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            for (Future<byte[]> future : queue) {
+                future.cancel(false);
+            }
+            Files.deleteIfExists(tmp.toPath());
+        }
+        metrics.end();
+        printSummary(bundle, bundle.length());
+    }
+
+    /**
+     * Indexes the classes and resources of the selected jars and reports those that several jars contain byte for byte,
+     * in a report next to {@code output}. If enabled, the redundant copies of classes are marked to be stripped,
+     * the first jar by name that is always loaded keeps its copy. Classes that no such jar has are not stripped.
+     */
+    private void findDuplicates(ForkJoinPool pool, List<ModJar> selected, File output) throws Throwable {
+        metrics.begin("duplicates");
+        step("Finding Duplicates");
+        DuplicateIndex index = new DuplicateIndex();
+        Set<String> signed = ConcurrentHashMap.newKeySet();
+        Set<String> alwaysLoaded = ConcurrentHashMap.newKeySet();
+        parallel(pool, "Indexing Jars", selected, jar -> withBytes(jar.content, bytes -> {
+            ZipArchive archive = readArchive(bytes);
+            if (archive != null) {
+                index.add(jar.name, archive);
+                if (DuplicateIndex.isSigned(archive)) signed.add(jar.name);
+                if (isAlwaysLoaded(jar, archive)) alwaysLoaded.add(jar.name);
+            }
+            return jar;
+        }));
+        Map<String, Set<String>> candidates = index.candidates();
+        List<ModJar> candidateJars = selected.stream().filter(jar -> candidates.containsKey(jar.name)).collect(Collectors.toList());
+        parallel(pool, "Hashing Duplicates", candidateJars, jar -> withBytes(jar.content, bytes -> {
+            ZipArchive archive = ZipArchive.read(bytes);
+            for (String path : candidates.get(jar.name)) {
+                ZipArchive.Entry entry = archive.get(path);
+                if (entry.method != ZipArchive.STORED) metrics.entryInflated();
+                index.confirm(jar.name, path, hash(archive.data(entry)));
+            }
+            return jar;
+        }));
+        List<DuplicateIndex.Duplicate> duplicates = index.duplicates();
+        long redundantBytes = 0;
+        int strippedCount = 0;
+        for (DuplicateIndex.Duplicate duplicate : duplicates) {
+            redundantBytes += duplicate.size * (duplicate.jars.size() - 1);
+            if (!flattener.stripDuplicates || !DuplicateIndex.isStrippable(duplicate.path)) continue;
+            String keeper = duplicate.jars.stream().filter(alwaysLoaded::contains).findFirst().orElse(null);
+            // Stripping a class no loaded jar has left would break every jar using it
+            if (keeper == null) continue;
+            for (String jar : duplicate.jars) {
+                if (jar.equals(keeper) || signed.contains(jar)) continue;
+                strippedEntries.computeIfAbsent(jar, name -> new HashSet<>()).add(duplicate.path);
+                strippedCount++;
+            }
+        }
+        info("Found " + duplicates.size() + " duplicate classes and resources in " + candidateJars.size() + " jars, "
+                + readableFileSize(redundantBytes) + " of redundant copies");
+        if (flattener.stripDuplicates) info("Stripping " + strippedCount + " redundant copies of classes");
+        File report = new File(output.getAbsoluteFile().getParentFile(), "flatten-duplicates.json");
+        run("Writing duplicates report", () -> DuplicateIndex.write(report, duplicates, strippedEntries));
+    }
+
+    /**
+     * Returns whether {@code jar} is on the classpath wherever the pack runs: it is a mod with a readable
+     * {@code fabric.mod.json} that is not limited to the client or the server.
+     */
+    private boolean isAlwaysLoaded(ModJar jar, ZipArchive archive) throws IOException {
+        if (jar.modId().equals("invalid")) return false;
+        ZipArchive.Entry fabricModJson = archive.get("fabric.mod.json");
+        if (fabricModJson == null) return false;
+        if (fabricModJson.method != ZipArchive.STORED) metrics.entryInflated();
+        return "*".equals(readModJson(archive.read(fabricModJson)).environment);
+    }
+
+    /**
+     * Returns a fingerprint of the duplicate classes stripped from {@code jar}, {@code null} if none are.
+     */
+    private String strippedFingerprint(ModJar jar) {
+        Set<String> stripped = strippedEntries.get(jar.name);
+        if (stripped == null) return null;
+        return hash(String.join("\n", new TreeSet<>(stripped)).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Prints the stats of the run and writes the flatten report next to {@code output}.
+     */
+    private void printSummary(File output, long newSize) {
+        printStats();
         System.out.println();
-        info("Step 3: Selecting Jars");
+        System.out.println("Flattened " + readableFileSize(ogSize.sum()) + " to " + readableFileSize(newSize));
+        File report = new File(output.getAbsoluteFile().getParentFile(), "flatten-report.json");
+        run("Writing flatten report", () -> metrics.write(report));
+        run("Writing flatten manifest", () -> manifest.write(new File(report.getParentFile(), FlattenManifest.FILE_NAME)));
         System.out.println();
-        for (File modIdFolder : tmp.listFiles()) {
-            if (!modIdFolder.isDirectory())
-                throw new IllegalStateException("Non directory entry in tmp folder: " + modIdFolder.getAbsolutePath());
-            run("Selecting Jar for " + modIdFolder.getName(), () -> selectMod(modIdFolder, flattenedMods, mods));
+        System.out.println("Phase timings (full report in " + report.getName() + "):");
+        for (String line : metrics.summary()) {
+            System.out.println(" - " + line);
+        }
+    }
+
+    /**
+     * Reads every jar of the input folders into the catalog (Step 1) and selects the jars to flatten (Step 2).
+     */
+    private List<ModJar> readAndSelect(ForkJoinPool pool) throws Throwable {
+        cache = flattener.cache();
+        metrics.begin("extract");
+        step("Reading Jars");
+        List<File> files = flattener.inputs.stream().flatMap(mods -> Stream.of(mods.listFiles()))
+                .filter(file -> file.isFile() && file.getName().endsWith(".jar") && !flattener.isExcluded(file.getName()))
+                .collect(Collectors.toList());
+        List<List<ModJar>> read;
+        try (ReadAhead readAhead = new ReadAhead(files, READ_AHEAD_PER_THREAD * flattener.threads, file -> cache.getJar(file) == null)) {
+            read = parallel(pool, "Reading Depth-0 Jars", files, file -> readJar(file, readAhead.take(file)));
+        }
+        for (List<ModJar> jars : read) {
+            for (ModJar jar : jars) {
+                catalog.computeIfAbsent(jar.modId(), id -> new ArrayList<>()).add(jar);
+            }
         }
+        System.out.println();
+        info("Read " + catalog.values().stream().mapToInt(List::size).sum() + " jars, " + contents.size() + " of them unique");
+        if (flattener.cacheFile != null) run("Saving metadata cache", () -> {
+            flattener.cacheFile.getParentFile().mkdirs();
+            cache.save(flattener.cacheFile);
+        });
+        metrics.begin("select");
+        step("Selecting Jars");
+        List<ModJar> selected = selectMods();
+        Set<String> outputNames = new HashSet<>();
+        for (ModJar jar : selected) {
+            if (!outputNames.add(jar.name))
+                throw new IllegalStateException("Multiple jars would be flattened into " + jar.name);
+        }
+        return selected;
+    }
+
+    /**
+     * Prints how often every mod id was found, and every warning of the run.
+     */
+    private void printStats() {
         System.out.println();
         System.out.println("Mod Duplication Stats (Showing top 20 results)");
         Map<String, Integer> countMap = new HashMap<>();
-        for (File modIdFolder : tmp.listFiles()) {
-            if (!modIdFolder.isDirectory())
-                throw new IllegalStateException("Non directory entry in tmp folder: " + modIdFolder.getAbsolutePath());
-            countMap.put(modIdFolder.getName(), modIdFolder.listFiles().length);
+        for (Map.Entry<String, List<ModJar>> entry : catalog.entrySet()) {
+            countMap.put(entry.getKey(), entry.getValue().size());
         }
         countMap.entrySet().stream().sorted(Map.Entry.comparingByValue(Comparator.reverseOrder())).limit(20).forEach(entry -> {
             System.out.println(" - " + entry.getKey() + " x" + entry.getValue());
         });
-        deleteRecursively(tmp);
-        long newSize = Stream.of(flattenedMods.listFiles()).filter(file -> file.isFile() && file.getName().endsWith(".jar"))
-                .mapToLong(File::length).sum();
         if (!warnings.isEmpty()) {
             System.out.println();
             System.out.println("You have " + warnings.size() + " warnings:");
@@ -124,8 +440,6 @@ public class Main {
                 System.out.println(" - " + warning);
             }
         }
-        System.out.println();
-        System.out.println("Flattened " + readableFileSize(ogSize) + " to " + readableFileSize(newSize));
     }
 
     private String readableFileSize(long length) {
@@ -135,319 +449,625 @@ public class Main {
         return new DecimalFormat("#,##0.#").format(length / Math.pow(1024.0, digitGroups)) + " " + units[digitGroups];
     }
 
-    private void selectMod(File modIdFolder, File flattenedMods, File mods) throws Throwable {
-        if (modIdFolder.getName().equals("invalid")) {
-            for (File file : modIdFolder.listFiles()) {
-                Files.copy(file.toPath(), new File(flattenedMods, stripInfoName(file.getName())).toPath());
+    /**
+     * Selects the jars of every mod id, reusing the previous selection of mod ids whose candidates did not change since.
+     */
+    List<ModJar> selectMods() {
+        List<ModJar> selected = new ArrayList<>();
+        Map<String, String> fingerprints = new HashMap<>();
+        List<ModResolver.Candidate<ModJar>> candidates = new ArrayList<>();
+        for (Map.Entry<String, List<ModJar>> entry : catalog.entrySet()) {
+            String fingerprint = fingerprint(entry.getValue());
+            List<ModJar> reused = reuseSelection(entry.getKey(), entry.getValue(), fingerprint);
+            if (reused != null) {
+                selected.addAll(reused);
+                continue;
             }
-        } else {
-            Optional<File> depth0File = Stream.of(modIdFolder.listFiles()).filter(file ->
-                    file.isFile() && stripInfoName(file.getName()).endsWith(".jar") &&
-                            new File(mods, stripInfoName(file.getName())).exists()).findFirst();
-            if (depth0File.isPresent()) {
-                Files.copy(depth0File.get().toPath(), new File(flattenedMods,
-                        stripInfoName(depth0File.get().getName())).toPath());
-                info("Selected " + stripAndDepthName(depth0File.get().getName()) +
-                        " from " + modIdFolder.getName() + " as depth 0 mod");
-                return;
+            fingerprints.put(entry.getKey(), fingerprint);
+            for (ModJar jar : entry.getValue()) {
+                candidates.add(jar.toCandidate());
             }
-            Map<File, Map.Entry<String, Optional<SemanticVersion>>> semverMap = new LinkedHashMap<>();
-            for (File file : modIdFolder.listFiles()) {
-                String modVersion = useMapped(new FileInputStream(file), stream ->
-                        getNullableModVersion(stripInfoName(file.getName()), stream));
-                SemanticVersion semver = null;
-                try {
-                    semver = SemanticVersion.parse(modVersion);
-                } catch (VersionParsingException ignored) {
-                }
-                semverMap.put(file, new AbstractMap.SimpleImmutableEntry<>(modVersion,
-                        Optional.ofNullable(semver)));
-            }
-            if (semverMap.isEmpty())
-                throw new IllegalStateException("Mod " + modIdFolder.getName() + " has no entries!");
-            List<String> invalidVersions = semverMap.entrySet().stream().filter(
-                    entry -> entry.getValue().getKey() == null
-            ).map(entry -> stripAndDepthName(entry.getKey().getName())).collect(Collectors.toList());
-            List<String> invalidSemverVersions = semverMap.entrySet().stream().filter(
-                    entry -> !entry.getValue().getValue().isPresent()
-            ).map(entry -> stripAndDepthName(entry.getKey().getName()) + " [" + entry.getValue().getKey() + "]").collect(Collectors.toList());
-            String invalidVersion = UUID.randomUUID().toString();
-            Map<SemanticVersion, List<File>> versionGroups = new HashMap<>();
-            for (Map.Entry<File, Map.Entry<String, Optional<SemanticVersion>>> entry : distinctBy(semverMap.entrySet(), entry ->
-                    entry.getValue().getKey() == null ? invalidVersion : entry.getValue().getKey())) {
-                Optional<SemanticVersion> versionOptional = entry.getValue().getValue().flatMap(version -> versionGroups.keySet().stream().filter(semver -> semver != null && semver.compareTo(version) == 0).findFirst());
-                SemanticVersion version = versionOptional.orElse(entry.getValue().getValue().orElse(null));
-                List<File> files = versionGroups.get(version);
-                if (files == null) {
-                    versionGroups.put(version, new ArrayList<>());
-                    files = versionGroups.get(version);
-                }
-                files.add(entry.getKey());
-            }
-            SortedMap<SemanticVersion, List<File>> sortedVersionGroups = new TreeMap<>(
-                    Comparator.nullsFirst(Comparator.naturalOrder())
-            );
-            sortedVersionGroups.putAll(versionGroups);
-            boolean forceSelect = false;
-            if (semverMap.size() > 1 && !invalidVersions.isEmpty()) {
-                warn(modIdFolder.getName() + " has invalid version(s): " + String.join(", ", invalidVersions));
-                forceSelect = true;
-            } else if (semverMap.size() > 1 && !invalidSemverVersions.isEmpty()) {
-                warn(modIdFolder.getName() + " has invalid semantic version(s): " + String.join(", ", invalidSemverVersions));
-                forceSelect = true;
-            } else if (last(sortedVersionGroups.values()).size() > 1) {
-                warn(modIdFolder.getName() + " has duplicate entries: " +
-                        last(sortedVersionGroups.entrySet()).getValue().stream().map(
-                                file -> stripAndDepthName(file.getName())
-                        ).collect(Collectors.joining(", ")));
-                forceSelect = true;
-            } else {
-                Map.Entry<File, Map.Entry<String, Optional<SemanticVersion>>> max = semverMap.entrySet().stream().max(Comparator.comparing(entry -> entry.getValue().getValue().get())).get();
-                List<Map.Entry<File, Map.Entry<String, Optional<SemanticVersion>>>> entries = new ArrayList<>(semverMap.entrySet());
-                entries.removeIf(entry -> entry.getValue().getValue().equals(max.getValue().getValue()));
-                List<Map.Entry<File, Map.Entry<String, Optional<SemanticVersion>>>> against = distinctBy(entries, entry -> entry.getValue().getValue());
-
-                if (against.isEmpty()) {
-                    info("Selected " + stripAndDepthName(max.getKey().getName()) + " (" + max.getValue().getKey() +
-                            ") from " + modIdFolder.getName() + " as the only version");
-                } else {
-                    info("Selected " + stripAndDepthName(max.getKey().getName()) + " (" + max.getValue().getKey() +
-                            ") from " + modIdFolder.getName() + " as the latest version against " +
-                            against.stream().map(entry -> entry.getValue().getKey()).collect(Collectors.joining(", ")));
-                }
-                Files.copy(max.getKey().toPath(),
-                        new File(flattenedMods, stripInfoName(max.getKey().getName())).toPath());
+        }
+        for (ModResolver.Decision<ModJar> decision : ModResolver.resolve(candidates)) {
+            FlattenState.ModState modState = new FlattenState.ModState();
+            modState.candidates = fingerprints.get(decision.modId);
+            modState.warnings = new ArrayList<>();
+            for (Map.Entry<String, Boolean> message : decision.messages) {
+                if (message.getValue()) warn(modState.warnings, message.getKey());
+                else info(message.getKey());
             }
-            if (semverMap.size() > 1 && forceSelect) {
-                Map<String, File> order = new ConcurrentHashMap<>();
-                Map<Integer, List<Map.Entry<File, Map.Entry<String, Optional<SemanticVersion>>>>> depthGroupedMap = semverMap.entrySet().stream().collect(Collectors.groupingBy(entry -> getDepth(entry.getKey().getName())));
-                for (Map.Entry<File, Map.Entry<String, Optional<SemanticVersion>>> entry : depthGroupedMap.entrySet().stream().min(Map.Entry.comparingByKey()).get().getValue()) {
-                    order.put(entry.getValue().getKey(), entry.getKey());
-                }
-                File first = first(order.values());
-                warn("Forcefully selected " + stripAndDepthName(first.getName()) + " from " + modIdFolder.getName());
-                Files.copy(first.toPath(), new File(flattenedMods, stripInfoName(first.getName())).toPath());
+            modState.forced = decision.forced;
+            modState.selected = decision.selected.stream().map(jar -> jar.path).collect(Collectors.toList());
+            state.mods.put(decision.modId, modState);
+            selected.addAll(decision.selected);
+        }
+        return selected;
+    }
+
+    private String fingerprint(List<ModJar> jars) {
+        StringBuilder fingerprint = new StringBuilder();
+        for (ModJar jar : jars) {
+            fingerprint.append(jar.content.hash).append(' ').append(jar.path).append('\n');
+        }
+        return hash(fingerprint.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Returns the previous selection of a mod id if its candidates did not change since, or {@code null}.
+     */
+    private List<ModJar> reuseSelection(String modId, List<ModJar> jars, String fingerprint) {
+        FlattenState.ModState previous = previousState == null ? null : previousState.mods.get(modId);
+        if (previous == null || !previous.candidates.equals(fingerprint)) return null;
+        List<ModJar> selected = jars.stream().filter(jar -> previous.selected.contains(jar.path)).collect(Collectors.toList());
+        if (selected.size() != previous.selected.size()) return null;
+        info("Reusing previous selection for " + modId + " as its jars are unchanged");
+        for (String warning : previous.warnings) warn(warning);
+        state.mods.put(modId, previous);
+        return selected;
+    }
+
+    /**
+     * Deletes every jar in {@code flattenedMods} that is not going to be part of this flattening.
+     */
+    /**
+     * Empties the output folder for a full rebuild, of the jars and the state the flattener wrote to it. A non-empty
+     * folder without a flatten state was not written by the flattener and is refused, rather than emptied.
+     */
+    private void clearOutput(File flattenedMods) throws IOException {
+        File[] files = flattenedMods.listFiles();
+        if (files == null || files.length == 0) return;
+        if (!new File(flattenedMods, FlattenState.FILE_NAME).isFile())
+            throw new IllegalStateException("The output folder is not empty and was not written by the flattener, "
+                    + "remove it or choose another output: " + flattenedMods.getAbsolutePath());
+        for (File file : files) {
+            if (file.isFile() && (file.getName().endsWith(".jar") || file.getName().startsWith(FlattenState.FILE_NAME)))
+                Files.delete(file.toPath());
+        }
+    }
+
+    private void removeStaleOutputs(File flattenedMods, Set<String> names) {
+        for (File file : flattenedMods.listFiles()) {
+            if (file.isFile() && file.getName().endsWith(".jar") && !names.contains(file.getName())) {
+                info("Removing stale output -> " + file.getName());
+                run("Removing stale output " + file.getAbsolutePath(), () -> Files.delete(file.toPath()));
             }
         }
     }
 
+    private void step(String name) {
+        System.out.println();
+        info("Step " + ++step + ": " + name);
+        System.out.println();
+    }
+
     private void info(String msg) {
-        System.out.println("[INFO] " + msg);
+        log("[INFO] " + msg);
     }
 
     private void warn(String msg) {
-        System.out.println("[WARN] " + msg);
+        log("[WARN] " + msg);
         warnings.add(msg);
     }
 
-    private String stripInfoName(String name) {
-        int indexOf = name.indexOf(splitUUID);
-        if (indexOf < 0) return name;
-        return name.substring(indexOf + splitUUID.length());
+    private void warn(List<String> collector, String msg) {
+        warn(msg);
+        collector.add(msg);
     }
 
-    private String onlyInfoName(String name) {
-        int indexOf = name.indexOf(splitUUID);
-        if (indexOf < 0) return name;
-        return name.substring(0, indexOf);
+    private void log(String line) {
+        List<String> buffer = taskLog.get();
+        if (buffer != null) buffer.add(line);
+        else System.out.println(line);
     }
 
-    private String stripAndDepthName(String name) {
-        return stripInfoName(name) + " (Depth " + getDepth(name) + ")";
+    /**
+     * Runs {@code block} for every input on the pool, the results are in the same order as the inputs.
+     * Log output of each input is buffered and printed in one piece, so lines of different jars never interleave.
+     */
+    private <T, R> List<R> parallel(ForkJoinPool pool, String task, List<T> inputs, Function<T, R> block) throws Throwable {
+        try {
+            return pool.submit(() -> inputs.parallelStream().map(input -> {
+                List<String> buffer = new ArrayList<>();
+                taskLog.set(buffer);
+                try {
+                    return supply(task, () -> block.apply(input));
+                } finally {
+                    taskLog.remove();
+                    synchronized (System.out) {
+                        for (String line : buffer) System.out.println(line);
+                    }
+                }
+            }).collect(Collectors.toList())).get();
+        } catch (ExecutionException e) {
+            throw e.getCause();
+        }
     }
 
-    private int getDepth(String name) {
-        return StringUtils.countMatches(onlyInfoName(name), arrow);
+    private JarScan scanJar(String modName, ByteBuffer bytes, boolean retainable) {
+        return supply("Reading jar " + modName, () -> {
+            ZipArchive archive;
+            try {
+                archive = ZipArchive.read(bytes);
+            } catch (ZipException e) {
+                return scanJarInflating(bytes);
+            }
+            metrics.jarParsed();
+            JarScan scan = new JarScan();
+            scan.excluded = archive.get(".modpacks-flatter-exclude") != null;
+            ZipArchive.Entry fabricModJson = archive.get("fabric.mod.json");
+            if (fabricModJson != null) {
+                if (fabricModJson.method != ZipArchive.STORED) metrics.entryInflated();
+                scan.modJson = readModJson(archive.read(fabricModJson));
+            }
+            for (ZipArchive.Entry entry : archive.entries) {
+                if (!entry.isDirectory() && entry.name.endsWith(".jar")) {
+                    scan.nestedJars.add(new AbstractMap.SimpleImmutableEntry<>(entry.name, () -> readNested(archive, entry, retainable)));
+                }
+            }
+            return scan;
+        });
     }
 
-    private void countJar(long lastModified, String modName, InputStream stream, boolean outer, File tmp) throws Throwable {
-        ZipInputStream zip = new ZipInputStream(stream);
+    /**
+     * Scans a jar that {@link ZipArchive} cannot read, by inflating every entry.
+     */
+    private JarScan scanJarInflating(ByteBuffer bytes) throws IOException {
+        metrics.jarParsed();
+        JarScan scan = new JarScan();
+        ZipInputStream zip = new ZipInputStream(ZipArchive.stream(bytes));
         while (true) {
             ZipEntry entry = zip.getNextEntry();
             if (entry == null) break;
-            if (!entry.isDirectory() && entry.getName().endsWith(".jar")) {
-                byte[] bytes = readBytes(zip);
-                use("Extracting JIJ Jars", new ByteArrayInputStream(bytes), jarBytes -> {
-                    countJar(
-                            entry.getTime(),
-                            modName + arrow + last(entry.getName().split("/")),
-                            jarBytes,
-                            true, tmp
-                    );
-                });
-                String modId = useMapped(new ByteArrayInputStream(bytes), jarBytes -> {
-                    String id = getNullableModId(entry.getName(), jarBytes);
-                    if (id != null) return id;
-                    return "invalid";
-                });
-                File toFile = new File(new File(tmp, modId),
-                        (outer ? modName + arrow + splitUUID : "") +
-                                last(entry.getName().split("/")));
-                toFile.getParentFile().mkdirs();
-                use("Copying JIJ jar into tmp folder", new FileOutputStream(toFile),
-                        writer -> IOUtils.write(bytes, writer));
+            if (entry.getName().equals(".modpacks-flatter-exclude")) {
+                scan.excluded = true;
+            } else if (entry.getName().equals("fabric.mod.json")) {
+                metrics.entryInflated();
+                scan.modJson = readModJson(readBytes(zip));
+            } else if (!entry.isDirectory() && entry.getName().endsWith(".jar")) {
+                Payload payload = readNestedInflating(zip);
+                scan.nestedJars.add(new AbstractMap.SimpleImmutableEntry<>(entry.getName(), () -> payload));
             }
         }
+        return scan;
     }
 
-    private void clearJIJStatus(File file) {
-        run("Clearing JIJ Status of " + file.getAbsolutePath(), () -> {
-            List<String> jars = new ArrayList<>();
-            use("Getting JIJ jars from " + file.getAbsolutePath(), new FileInputStream(file), stream -> {
-                ZipInputStream zip = new ZipInputStream(stream);
-                while (true) {
-                    ZipEntry entry = zip.getNextEntry();
-                    if (entry == null) break;
-                    if (!entry.isDirectory() && entry.getName().endsWith(".jar")) {
-                        jars.add(entry.getName());
-                    }
+    /**
+     * Reads a nested jar, stored jars are used in place. With a bounded {@link BufferBudget}, deflated jars
+     * that do not fit into the budget are inflated into a mapped temp file instead of the heap.
+     *
+     * @param retainable whether the jar containing this entry may be kept in memory for the whole run
+     */
+    private Payload readNested(ZipArchive archive, ZipArchive.Entry entry, boolean retainable) throws IOException {
+        if (entry.method == ZipArchive.STORED) return new Payload(archive.rawData(entry), 0, retainable);
+        metrics.entryInflated();
+        if (!flattener.budget.isBounded()) return new Payload(archive.data(entry), 0, true);
+        if (flattener.budget.tryReserve(entry.size)) return new Payload(archive.data(entry), entry.size, false);
+        File spill = newSpill();
+        archive.inflateTo(entry, spill);
+        return new Payload(ZipArchive.map(spill), 0, true);
+    }
+
+    /**
+     * Reads the current entry of {@code zip} as a nested jar. With a bounded {@link BufferBudget} it is always spilled,
+     * since a nested jar of a jar {@link ZipArchive} cannot read could not be read again once released.
+     */
+    private Payload readNestedInflating(ZipInputStream zip) throws IOException {
+        if (!flattener.budget.isBounded()) return new Payload(ByteBuffer.wrap(readBytes(zip)), 0, true);
+        File spill = newSpill();
+        Files.copy(zip, spill.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return new Payload(ZipArchive.map(spill), 0, true);
+    }
+
+    private File newSpill() throws IOException {
+        File spill = File.createTempFile("modpacks-flattener-", ".jar");
+        spill.deleteOnExit();
+        spills.add(spill);
+        return spill;
+    }
+
+    /**
+     * Runs {@code block} with the bytes of {@code content}. Nested jars that have to be read again on the way are
+     * inflated within the {@link BufferBudget} like during the scan, and their reservations are released once
+     * {@code block} returns.
+     */
+    private <R> R withBytes(JarContent content, Function<ByteBuffer, R> block) throws Throwable {
+        List<Payload> payloads = new ArrayList<>();
+        try {
+            return block.apply(content.bytes(metrics, (archive, entry) -> {
+                Payload payload = readNested(archive, entry, false);
+                payloads.add(payload);
+                return payload.bytes;
+            }));
+        } finally {
+            for (Payload payload : payloads) flattener.budget.release(payload.reserved);
+        }
+    }
+
+    List<ModJar> readJar(File file) throws IOException {
+        return readJar(file, null);
+    }
+
+    /**
+     * @param bytes the already loaded bytes of {@code file}, {@code null} to map it here if needed
+     */
+    private List<ModJar> readJar(File file, ByteBuffer bytes) throws IOException {
+        long start = System.nanoTime();
+        try {
+            return readJarUntimed(file, bytes);
+        } finally {
+            metrics.jarTime(file.getName(), System.nanoTime() - start);
+        }
+    }
+
+    private List<ModJar> readJarUntimed(File file, ByteBuffer bytes) throws IOException {
+        JarContent content = null;
+        MetadataCache.CachedJar cached = cache.getJar(file);
+        if (cached != null) {
+            if (cached.excluded) return Collections.emptyList();
+            content = restoreContent(cached.hash, file, Collections.emptyList());
+        }
+        if (content != null) {
+            info("Reading Jar (Cached) -> " + file.getName());
+        } else {
+            if (bytes == null) bytes = ZipArchive.map(file);
+            metrics.bytesRead(bytes.remaining());
+            String hash = hash(bytes);
+            content = contents.get(hash);
+            if (content == null) {
+                JarScan scan = scanJar(file.getName(), bytes, true);
+                if (scan.excluded) {
+                    cache.putJar(file, null, true);
+                    return Collections.emptyList();
                 }
-            });
+                content = readContent(hash, scan, new Payload(bytes, 0, true), file, Collections.emptyList());
+            }
+            cache.putJar(file, content.hash, false);
+            cache.putContent(content);
+            info("Reading Jar -> " + file.getName());
+        }
+        ogSize.add(file.length());
+        List<ModJar> jars = new ArrayList<>();
+        catalogJar(jars, file, file.getName(), file.getName(), 0, content);
+        return jars;
+    }
 
-            URI zipURI = file.getAbsoluteFile().toURI();
-            use(FileSystems.newFileSystem(URI.create("jar:" + zipURI), zipProperties), zipFs -> {
-                for (String jar : jars) Files.delete(zipFs.getPath(jar));
-                Path fabricModJson = zipFs.getPath("fabric.mod.json");
-                try {
-                    JsonObject object = JsonParser.parseString(
-                            useMapped(Files.newInputStream(fabricModJson), this::readText)
-                    ).getAsJsonObject();
-                    object.remove("jars");
-                    Files.delete(fabricModJson);
-                    use(Files.newBufferedWriter(fabricModJson), writer ->
-                            IOUtils.write(new Gson().toJson(object), writer));
-                } catch (NoSuchFileException ignored) {
+    private JarContent readContent(String name, Payload payload, File origin, List<String> entries) {
+        try {
+            String hash = hash(payload.bytes);
+            JarContent content = contents.get(hash);
+            if (content != null) return content;
+            return readContent(hash, scanJar(name, payload.bytes, payload.retainable), payload, origin, entries);
+        } finally {
+            flattener.budget.release(payload.reserved);
+        }
+    }
+
+    /**
+     * @param origin  the depth-0 jar this content was found in
+     * @param entries the entry names leading from {@code origin} to this content
+     */
+    private JarContent readContent(String hash, JarScan scan, Payload payload, File origin, List<String> entries) {
+        String modId = scan.modJson == null ? null : scan.modJson.id;
+        if (modId == null) modId = "invalid";
+        List<Map.Entry<String, JarContent>> nestedJars = new ArrayList<>();
+        for (Map.Entry<String, Supplier<Payload>> nested : scan.nestedJars) {
+            String nestedName = last(nested.getKey().split("/"));
+            List<String> nestedEntries = new ArrayList<>(entries);
+            nestedEntries.add(nested.getKey());
+            nestedJars.add(new AbstractMap.SimpleImmutableEntry<>(nested.getKey(), supply("Reading JIJ Jars",
+                    () -> readContent(nestedName, nested.getValue().get(), origin, nestedEntries))));
+        }
+        String version = scan.modJson == null ? null : scan.modJson.version;
+        // Payloads held on the heap are let go once read, they are read again from their origin if they get selected
+        JarContent content = !payload.retainable
+                ? new JarContent(hash, modId, version, payload.bytes.remaining(), nestedJars, origin, entries)
+                : new JarContent(hash, modId, version, payload.bytes, nestedJars);
+        JarContent existing = contents.putIfAbsent(hash, content);
+        return existing != null ? existing : content;
+    }
+
+    /**
+     * Rebuilds a content from the metadata cache, or returns {@code null} if the cache does not know all of it.
+     */
+    private JarContent restoreContent(String hash, File origin, List<String> entries) {
+        JarContent content = contents.get(hash);
+        if (content != null) return content;
+        MetadataCache.CachedContent cached = cache.getContent(hash);
+        if (cached == null) return null;
+        List<Map.Entry<String, JarContent>> nestedJars = new ArrayList<>();
+        for (MetadataCache.CachedNested nested : cached.nested) {
+            List<String> nestedEntries = new ArrayList<>(entries);
+            nestedEntries.add(nested.entry);
+            JarContent nestedContent = restoreContent(nested.hash, origin, nestedEntries);
+            if (nestedContent == null) return null;
+            nestedJars.add(new AbstractMap.SimpleImmutableEntry<>(nested.entry, nestedContent));
+        }
+        content = new JarContent(hash, cached.modId, cached.version, cached.size, nestedJars, origin, entries);
+        JarContent existing = contents.putIfAbsent(hash, content);
+        return existing != null ? existing : content;
+    }
+
+    private void catalogJar(List<ModJar> jars, File file, String name, String path, int depth, JarContent content) {
+        if (flattener.isExcluded(name)) {
+            info("Excluded " + path);
+            return;
+        }
+        jars.add(new ModJar(name, path, depth, content, file));
+        for (Map.Entry<String, JarContent> nested : content.nestedJars) {
+            String nestedName = last(nested.getKey().split("/"));
+            catalogJar(jars, null, nestedName, path + " -> " + nestedName, depth + 1, nested.getValue());
+        }
+    }
+
+    /**
+     * Writes {@code jar} to {@code target} without its nested jars. Unless jars are repacked, jars that have nothing
+     * to strip are written as is, depth-0 ones are hard linked to the original file when possible.
+     * {@code target} must not exist yet.
+     *
+     * @return the SHA-256 of the written jar
+     */
+    String clearJIJStatus(ModJar jar, File target) {
+        long start = System.nanoTime();
+        String outputHash = supply("Clearing JIJ Status of " + jar.path, () -> {
+            if (flattener.store != null) return linkFromStore(jar, target);
+            return withBytes(jar.content, bytes -> {
+                ZipArchive archive = readArchive(bytes);
+                Map<String, byte[]> replacements = archive == null ? null : stripReplacements(archive);
+                Predicate<ZipArchive.Entry> keep = keep(jar);
+                if (archive != null && jar.file != null && flattener.repackLevel < 0 && isUnmodified(archive, replacements, keep)) {
+                    copyUnmodified(jar.file, target);
+                    // The output has the exact bytes of the input
+                    return jar.content.hash;
+                }
+                String written;
+                try (HashingChannel channel = new HashingChannel(FileChannel.open(target.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE))) {
+                    clearJIJStatus(bytes, archive, replacements, keep, channel);
+                    written = channel.hash();
                 }
+                metrics.bytesWritten(target.length());
+                return written;
             });
         });
+        metrics.jarTime(jar.path, System.nanoTime() - start);
+        return outputHash;
     }
 
-    private String getNullableModId(String modName, InputStream stream) {
-        return supply("Reading mod id from " + modName, () -> {
-            ZipInputStream zip = new ZipInputStream(stream);
-            while (true) {
-                ZipEntry entry = zip.getNextEntry();
-                if (entry == null) break;
-                if (entry.getName().equals("fabric.mod.json"))
-                    try {
-                        return JsonParser.parseReader(new JsonReader(new StringReader(readText(zip)))).getAsJsonObject()
-                                .get("id").getAsJsonPrimitive().getAsString();
-                    } catch (Throwable ignored) {
-                    }
+    /**
+     * Returns {@code jar} without its nested jars.
+     */
+    byte[] clearJIJStatus(ModJar jar) {
+        long start = System.nanoTime();
+        byte[] cleared = supply("Clearing JIJ Status of " + jar.path, () -> withBytes(jar.content, bytes -> {
+            ZipArchive archive = readArchive(bytes);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.remaining());
+            try (WritableByteChannel channel = Channels.newChannel(out)) {
+                clearJIJStatus(bytes, archive, archive == null ? null : stripReplacements(archive), keep(jar), channel);
             }
-            return null;
-        });
+            return out.toByteArray();
+        }));
+        metrics.jarTime(jar.path, System.nanoTime() - start);
+        return cleared;
     }
 
-    private String getNullableModVersion(String modName, InputStream stream) {
-        return supply("Reading mod version from " + modName, () -> {
-            ZipInputStream zip = new ZipInputStream(stream);
-            while (true) {
-                ZipEntry entry = zip.getNextEntry();
-                if (entry == null) break;
-                if (entry.getName().equals("fabric.mod.json"))
-                    try {
-                        return JsonParser.parseString(readText(zip)).getAsJsonObject()
-                                .get("version").getAsJsonPrimitive().getAsString();
-                    } catch (Throwable ignored) {
-                    }
+    /**
+     * @param archive      the archive of {@code bytes}, {@code null} if {@link ZipArchive} cannot read it
+     * @param replacements see {@link #stripReplacements}
+     * @param keep         see {@link #keep}
+     */
+    private void clearJIJStatus(ByteBuffer bytes, ZipArchive archive, Map<String, byte[]> replacements,
+                                Predicate<ZipArchive.Entry> keep, WritableByteChannel channel) throws Throwable {
+        if (archive == null) {
+            clearJIJStatusInflating(bytes, new BufferedOutputStream(Channels.newOutputStream(channel)));
+        } else if (flattener.repackLevel >= 0) {
+            for (ZipArchive.Entry entry : archive.entries) {
+                if (entry.method != ZipArchive.STORED && keep.test(entry)) metrics.entryInflated();
             }
+            JarRewriter.repack(archive, channel, keep, replacements, flattener.repackLevel);
+        } else if (isUnmodified(archive, replacements, keep)) {
+            ByteBuffer unmodified = bytes.duplicate();
+            while (unmodified.hasRemaining()) channel.write(unmodified);
+        } else {
+            JarRewriter.rewrite(archive, channel, keep, replacements);
+        }
+    }
+
+    private ZipArchive readArchive(ByteBuffer bytes) {
+        try {
+            return ZipArchive.read(bytes);
+        } catch (ZipException e) {
             return null;
-        });
+        }
     }
 
-    private String readText(InputStream stream) {
-        return supply("Reading text from stream",
-                () -> String.join("\n", IOUtils.readLines(stream, Charset.defaultCharset())));
+    /**
+     * Returns which entries of {@code jar} are kept once its JIJ status is cleared, that is every entry but its nested
+     * jars and its stripped duplicate classes.
+     */
+    private Predicate<ZipArchive.Entry> keep(ModJar jar) {
+        Set<String> stripped = strippedEntries.getOrDefault(jar.name, Collections.emptySet());
+        return entry -> (entry.isDirectory() || !entry.name.endsWith(".jar")) && !stripped.contains(entry.name);
     }
 
-    private String generateRandomString(int range) {
-        String allowedChar = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ123456789";
-        StringBuilder builder = new StringBuilder();
-        for (int i = 0; i < range; i++)
-            builder.append(allowedChar.charAt(RANDOM.nextInt(allowedChar.length())));
-        return builder.toString();
+    /**
+     * Returns the entries to replace to clear the JIJ status of {@code archive}, that is its stripped fabric.mod.json.
+     */
+    private Map<String, byte[]> stripReplacements(ZipArchive archive) throws ZipException {
+        Map<String, byte[]> replacements = new HashMap<>();
+        ZipArchive.Entry fabricModJson = archive.get("fabric.mod.json");
+        if (fabricModJson != null) {
+            if (fabricModJson.method != ZipArchive.STORED) metrics.entryInflated();
+            byte[] json = archive.read(fabricModJson);
+            byte[] stripped = stripJars(json);
+            if (stripped != json) replacements.put(fabricModJson.name, stripped);
+        }
+        return replacements;
+    }
+
+    private boolean isUnmodified(ZipArchive archive, Map<String, byte[]> replacements, Predicate<ZipArchive.Entry> keep) {
+        return replacements.isEmpty() && archive.entries.stream().allMatch(keep);
+    }
+
+    /**
+     * Estimates the size of {@code jar} once {@link #clearJIJStatus} removed its nested jars, from its central directory.
+     */
+    private long projectedSize(ModJar jar) throws Throwable {
+        return withBytes(jar.content, bytes -> {
+            ZipArchive archive = readArchive(bytes);
+            if (archive == null) return jar.size();
+            long size = jar.size();
+            for (ZipArchive.Entry entry : archive.entries) {
+                if (entry.isDirectory() || !entry.name.endsWith(".jar")) continue;
+                // The local header of an entry is about as long as its central directory record
+                size -= entry.compressedSize + 2L * archive.centralRecord(entry).remaining();
+            }
+            return size;
+        });
     }
 
-    private boolean isJarExcluded(File file) throws Throwable {
-        return useMapped("Checking if jar should be excluded: " + file.getAbsolutePath(),
-                new FileInputStream(file), stream -> {
-                    ZipInputStream zip = new ZipInputStream(stream);
-                    while (true) {
-                        ZipEntry entry = zip.getNextEntry();
-                        if (entry == null) break;
-                        if (entry.getName().equals(".modpacks-flatter-exclude"))
-                            return true;
+    /**
+     * Links the cleared {@code jar} into {@code target} from the store, clearing it into the store first if no earlier
+     * pack or run did. Stored jars are never modified once in place, as any number of outputs may be linked to them.
+     * The SHA-256 of every stored jar is kept next to it, so later packs do not have to read the jar to know it.
+     *
+     * @return the SHA-256 of the stored jar
+     */
+    private String linkFromStore(ModJar jar, File target) throws Throwable {
+        File stored = storeFile(jar);
+        File storedHash = new File(stored.getParentFile(), stored.getName() + ".sha256");
+        String outputHash;
+        if (!stored.isFile()) {
+            stored.getParentFile().mkdirs();
+            Path tmp = Files.createTempFile(stored.getParentFile().toPath(), stored.getName(), ".tmp");
+            Path hashTmp = Files.createTempFile(stored.getParentFile().toPath(), storedHash.getName(), ".tmp");
+            try {
+                outputHash = withBytes(jar.content, bytes -> {
+                    ZipArchive archive = readArchive(bytes);
+                    try (HashingChannel channel = new HashingChannel(FileChannel.open(tmp, StandardOpenOption.WRITE))) {
+                        clearJIJStatus(bytes, archive, archive == null ? null : stripReplacements(archive), keep(jar), channel);
+                        return channel.hash();
                     }
-                    return false;
                 });
+                metrics.bytesWritten(Files.size(tmp));
+                Files.write(hashTmp, outputHash.getBytes(StandardCharsets.UTF_8));
+                // The hash goes first, a stored jar always has its hash next to it
+                moveIntoStore(hashTmp, storedHash);
+                moveIntoStore(tmp, stored);
+            } finally {
+                Files.deleteIfExists(tmp);
+                Files.deleteIfExists(hashTmp);
+            }
+        } else {
+            info("Found in store -> " + jar.path);
+            outputHash = new String(Files.readAllBytes(storedHash.toPath()), StandardCharsets.UTF_8).trim();
+        }
+        copyUnmodified(stored, target);
+        return outputHash;
     }
 
-    private byte[] readBytes(InputStream stream) throws IOException {
-        return IOUtils.toByteArray(stream);
+    private static void moveIntoStore(Path tmp, File target) throws IOException {
+        try {
+            Files.move(tmp, target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (FileAlreadyExistsException ignored) {
+            // Another process stored the same jar meanwhile
+        }
     }
 
-    private <T extends Closeable> void use(T closeable, Consumer<T> block) throws Throwable {
-        Throwable throwable = null;
-        try {
-            block.accept(closeable);
-        } catch (Throwable t) {
-            throwable = t;
-            throw t;
-        } finally {
-            if (closeable != null && throwable == null) {
-                try {
-                    closeable.close();
-                } catch (Throwable t) {
-                    throwable.addSuppressed(t);
-                }
+    /**
+     * Returns where the cleared {@code jar} is kept in the store, by the hash of its content and of everything else its
+     * output depends on, the tool version included. Files are spread over folders by the first two characters of their hash.
+     */
+    private File storeFile(ModJar jar) {
+        String key = hash((jar.content.hash + "/" + STORE_FORMAT + "/" + MetadataCache.toolVersion() + "/"
+                + flattener.repackLevel + "/" + strippedFingerprint(jar)).getBytes(StandardCharsets.UTF_8));
+        return new File(new File(flattener.store, key.substring(0, 2)), key + ".jar");
+    }
+
+    /**
+     * Hard links {@code target} to {@code source}, or copies it through {@link FileChannel#transferTo} if links are
+     * disabled or not supported, e.g. across file stores.
+     */
+    private void copyUnmodified(File source, File target) throws IOException {
+        if (flattener.links) {
+            try {
+                Files.createLink(target.toPath(), source.toPath());
+                return;
+            } catch (UnsupportedOperationException | IOException ignored) {
+                // Fall back to copying, e.g. when the output is on another file store
+            }
+        }
+        try (FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            long size = in.size();
+            for (long position = 0; position < size; ) {
+                position += in.transferTo(position, size - position, out);
             }
+            metrics.bytesWritten(size);
         }
     }
 
-    private <T extends Closeable> void use(String task, T closeable, Consumer<T> block) throws Throwable {
-        Throwable throwable = null;
+    /**
+     * Clears the JIJ status of a jar that {@link ZipArchive} cannot read, by inflating and deflating every entry.
+     */
+    private void clearJIJStatusInflating(ByteBuffer bytes, OutputStream target) throws Throwable {
+        use(new ZipInputStream(ZipArchive.stream(bytes)), zip -> {
+            use(new ZipOutputStream(target), out -> {
+                while (true) {
+                    ZipEntry entry = zip.getNextEntry();
+                    if (entry == null) break;
+                    if (!entry.isDirectory() && entry.getName().endsWith(".jar")) continue;
+                    ZipEntry copy = new ZipEntry(entry.getName());
+                    copy.setTime(entry.getTime());
+                    out.putNextEntry(copy);
+                    if (entry.getName().equals("fabric.mod.json")) {
+                        IOUtils.write(stripJars(readBytes(zip)), out);
+                    } else {
+                        IOUtils.copy(zip, out);
+                    }
+                    out.closeEntry();
+                }
+            });
+        });
+    }
+
+    private byte[] stripJars(byte[] fabricModJson) {
+        long start = System.nanoTime();
         try {
-            block.accept(closeable);
-        } catch (Throwable t) {
-            t = new RuntimeException(task, t);
-            throwable = t;
-            throw t;
+            return ModJson.stripJars(fabricModJson);
         } finally {
-            if (closeable != null && throwable == null) {
-                try {
-                    closeable.close();
-                } catch (Throwable t) {
-                    throwable.addSuppressed(t);
-                }
-            }
+            metrics.jsonParsed(System.nanoTime() - start);
         }
     }
 
-    private <T extends Closeable, R> R useMapped(T closeable, Function<T, R> block) throws Throwable {
-        Throwable throwable = null;
+    private ModJson readModJson(byte[] fabricModJson) {
+        long start = System.nanoTime();
         try {
-            return block.apply(closeable);
-        } catch (Throwable t) {
-            throwable = t;
-            throw t;
+            return ModJson.read(fabricModJson);
         } finally {
-            if (closeable != null && throwable == null) {
-                try {
-                    closeable.close();
-                } catch (Throwable t) {
-                    throwable.addSuppressed(t);
-                }
-            }
+            metrics.jsonParsed(System.nanoTime() - start);
         }
     }
 
-    private <T extends Closeable, R> R useMapped(String task, T closeable, Function<T, R> block) throws Throwable {
+    private String hash(byte[] bytes) {
+        return supply("Hashing jar", () -> hex(MessageDigest.getInstance("SHA-256").digest(bytes)));
+    }
+
+    private String hash(ByteBuffer bytes) {
+        return supply("Hashing jar", () -> {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(bytes.duplicate());
+            return hex(digest.digest());
+        });
+    }
+
+    private byte[] readBytes(InputStream stream) throws IOException {
+        return IOUtils.toByteArray(stream);
+    }
+
+    private <T extends Closeable> void use(T closeable, Consumer<T> block) throws Throwable {
         Throwable throwable = null;
         try {
-            return block.apply(closeable);
+            block.accept(closeable);
         } catch (Throwable t) {
-            t = new RuntimeException(task, t);
             throwable = t;
             throw t;
         } finally {
@@ -461,23 +1081,6 @@ public class Main {
         }
     }
 
-    private <T> T first(Collection<T> values) {
-        return values.iterator().next();
-    }
-
-    private <T, R> List<T> distinctBy(Iterable<T> iterable, Function<T, R> selection) {
-        return supply("Distinct List", () -> {
-            Set<R> set = new HashSet<>();
-            List<T> list = new ArrayList<>();
-            for (T t : iterable) {
-                R key = selection.apply(t);
-                if (set.add(key))
-                    list.add(t);
-            }
-            return list;
-        });
-    }
-
     private void run(String task, Runnable runnable) {
         try {
             runnable.run();
@@ -494,28 +1097,81 @@ public class Main {
         }
     }
 
-    private void deleteRecursively(File folder) {
-        if (!folder.exists())
-            return;
-        run("Delete folder recursively " + folder.getAbsolutePath(), () -> {
-            Files.walk(folder.toPath()).sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
-        });
-    }
-
     private String last(String[] split) {
         return split[split.length - 1];
     }
 
-    private <T> T last(Iterable<T> collection) {
-        if (collection instanceof List)
-            return ((List<T>) collection).get(((List<T>) collection).size() - 1);
-        Iterator<T> iterator = collection.iterator();
-        if (!iterator.hasNext())
-            throw new NoSuchElementException("Iterable is empty.");
-        T next = iterator.next();
-        while (iterator.hasNext())
-            next = iterator.next();
-        return next;
+    private static String hex(byte[] digest) {
+        StringBuilder builder = new StringBuilder();
+        for (byte b : digest)
+            builder.append(String.format("%02x", b));
+        return builder.toString();
+    }
+
+    /**
+     * Passes everything written on to {@code channel}, hashing it with SHA-256 on the way.
+     */
+    private static final class HashingChannel implements WritableByteChannel {
+        private final WritableByteChannel channel;
+        private final MessageDigest digest;
+
+        private HashingChannel(WritableByteChannel channel) throws NoSuchAlgorithmException {
+            this.channel = channel;
+            this.digest = MessageDigest.getInstance("SHA-256");
+        }
+
+        @Override
+        public int write(ByteBuffer source) throws IOException {
+            ByteBuffer written = source.duplicate();
+            int length = channel.write(source);
+            written.limit(written.position() + length);
+            digest.update(written);
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+
+        /**
+         * Returns the SHA-256 of everything written so far, may only be called once.
+         */
+        private String hash() {
+            return hex(digest.digest());
+        }
+    }
+
+    private static final class Payload {
+        private final ByteBuffer bytes;
+        /**
+         * The bytes reserved from the {@link BufferBudget} for this payload.
+         */
+        private final long reserved;
+        /**
+         * Whether the bytes may be kept for the whole run, {@code false} for budgeted heap buffers and slices of them.
+         */
+        private final boolean retainable;
+
+        private Payload(ByteBuffer bytes, long reserved, boolean retainable) {
+            this.bytes = bytes;
+            this.reserved = reserved;
+            this.retainable = retainable;
+        }
+    }
+
+    private static final class JarScan {
+        /**
+         * The nested jars by entry name, only read once they are needed so siblings are not held in memory together.
+         */
+        private final List<Map.Entry<String, Supplier<Payload>>> nestedJars = new ArrayList<>();
+        private boolean excluded;
+        private ModJson modJson;
     }
 
     private interface Runnable {
@@ -0,0 +1,177 @@
+package me.shedaniel.modflattener;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Remembers the metadata of depth-0 jars across runs, so unchanged jars do not have to be read again.
+ * Depth-0 jars are keyed by their absolute path, and checked against their size and last modified time. Their contents
+ * (nested jars included) are keyed by content hash. One cache can so be shared by the mods folders of several packs.
+ */
+final class MetadataCache {
+    /**
+     * Bump this whenever the way metadata is read changes, older cache files are then discarded.
+     */
+    private static final int FORMAT = 3;
+    /**
+     * How many jars are kept per mods folder, the cache holds as many folders as it was used with in the last week.
+     */
+    private static final int MAX_JARS_PER_FOLDER = 2048;
+    private static final long STALE_AFTER = TimeUnit.DAYS.toMillis(7);
+    private static final Gson GSON = new Gson();
+
+    private final Map<String, CachedJar> jars;
+    private final Map<String, CachedContent> contents;
+
+    private MetadataCache(Map<String, CachedJar> jars, Map<String, CachedContent> contents) {
+        this.jars = new ConcurrentHashMap<>(jars);
+        this.contents = new ConcurrentHashMap<>(contents);
+    }
+
+    static MetadataCache empty() {
+        return new MetadataCache(Collections.emptyMap(), Collections.emptyMap());
+    }
+
+    /**
+     * Loads the cache from {@code file}, a missing, unreadable or outdated cache is treated as an empty one.
+     */
+    static MetadataCache load(File file) {
+        if (!file.isFile()) return empty();
+        try (Reader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            Data data = GSON.fromJson(reader, Data.class);
+            if (data == null || data.format != FORMAT || !toolVersion().equals(data.tool) || data.jars == null || data.contents == null)
+                return empty();
+            return new MetadataCache(data.jars, data.contents);
+        } catch (IOException | JsonParseException ignored) {
+            return empty();
+        }
+    }
+
+    static String toolVersion() {
+        String version = MetadataCache.class.getPackage().getImplementationVersion();
+        return version == null ? "dev" : version;
+    }
+
+    /**
+     * Returns the cached metadata of a depth-0 jar, or {@code null} if the jar is unknown or changed since.
+     */
+    CachedJar getJar(File file) {
+        CachedJar jar = jars.get(file.getAbsolutePath());
+        if (jar == null || jar.size != file.length() || jar.lastModified != file.lastModified())
+            return null;
+        jar.lastUsed = System.currentTimeMillis();
+        return jar;
+    }
+
+    CachedContent getContent(String hash) {
+        return contents.get(hash);
+    }
+
+    void putJar(File file, String hash, boolean excluded) {
+        CachedJar jar = new CachedJar();
+        jar.size = file.length();
+        jar.lastModified = file.lastModified();
+        jar.hash = hash;
+        jar.excluded = excluded;
+        jar.lastUsed = System.currentTimeMillis();
+        jars.put(file.getAbsolutePath(), jar);
+    }
+
+    void putContent(JarContent content) {
+        if (contents.containsKey(content.hash)) return;
+        CachedContent cached = new CachedContent();
+        cached.modId = content.modId;
+        cached.version = content.version;
+        cached.size = content.size;
+        cached.nested = new ArrayList<>();
+        for (Map.Entry<String, JarContent> nested : content.nestedJars) {
+            CachedNested cachedNested = new CachedNested();
+            cachedNested.entry = nested.getKey();
+            cachedNested.hash = nested.getValue().hash;
+            cached.nested.add(cachedNested);
+            putContent(nested.getValue());
+        }
+        contents.put(content.hash, cached);
+    }
+
+    /**
+     * Writes the cache to {@code file}. Jars not seen for a week are evicted, and only the {@value MAX_JARS_PER_FOLDER}
+     * most recently used jars per folder are kept. Contents no longer reachable from a kept jar are dropped.
+     */
+    void save(File file) throws IOException {
+        Data data = new Data();
+        data.format = FORMAT;
+        data.tool = toolVersion();
+        data.jars = new LinkedHashMap<>();
+        long now = System.currentTimeMillis();
+        Comparator<Map.Entry<String, CachedJar>> recentFirst =
+                Comparator.comparingLong((Map.Entry<String, CachedJar> entry) -> entry.getValue().lastUsed).reversed();
+        Map<String, List<Map.Entry<String, CachedJar>>> byFolder = jars.entrySet().stream()
+                .filter(entry -> now - entry.getValue().lastUsed < STALE_AFTER)
+                .collect(Collectors.groupingBy(entry -> String.valueOf(new File(entry.getKey()).getParent())));
+        byFolder.values().stream()
+                .flatMap(folder -> folder.stream().sorted(recentFirst).limit(MAX_JARS_PER_FOLDER))
+                .sorted(recentFirst)
+                .forEach(entry -> data.jars.put(entry.getKey(), entry.getValue()));
+        data.contents = new LinkedHashMap<>();
+        for (CachedJar jar : data.jars.values()) {
+            if (jar.hash != null) keepContent(data.contents, jar.hash);
+        }
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8)) {
+            GSON.toJson(data, writer);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private void keepContent(Map<String, CachedContent> kept, String hash) {
+        CachedContent content = contents.get(hash);
+        if (content == null || kept.containsKey(hash)) return;
+        kept.put(hash, content);
+        for (CachedNested nested : content.nested) {
+            keepContent(kept, nested.hash);
+        }
+    }
+
+    private static class Data {
+        private int format;
+        private String tool;
+        private Map<String, CachedJar> jars;
+        private Map<String, CachedContent> contents;
+    }
+
+    static class CachedJar {
+        long size;
+        long lastModified;
+        /**
+         * The content hash of the jar, {@code null} if the jar is excluded.
+         */
+        String hash;
+        boolean excluded;
+        long lastUsed;
+    }
+
+    static class CachedContent {
+        String modId;
+        String version;
+        long size;
+        List<CachedNested> nested;
+    }
+
+    static class CachedNested {
+        String entry;
+        String hash;
+    }
+}
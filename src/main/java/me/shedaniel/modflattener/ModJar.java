@@ -0,0 +1,52 @@
+package me.shedaniel.modflattener;
+
+import java.io.File;
+
+/**
+ * A jar found while reading the mods folder, either a depth-0 jar or one nested (JIJ) inside another jar.
+ * Every occurrence of a jar gets its own entry, while identical jars share the same {@link JarContent}.
+ */
+final class ModJar {
+    /**
+     * The file name of the jar, this is also the name used in the flattened output.
+     */
+    final String name;
+    /**
+     * The chain of jars leading to this jar, used for logging only.
+     */
+    final String path;
+    final int depth;
+    final JarContent content;
+    /**
+     * The jar on disk, {@code null} for nested jars.
+     */
+    final File file;
+
+    ModJar(String name, String path, int depth, JarContent content, File file) {
+        this.name = name;
+        this.path = path;
+        this.depth = depth;
+        this.content = content;
+        this.file = file;
+    }
+
+    String modId() {
+        return content.modId;
+    }
+
+    String version() {
+        return content.version;
+    }
+
+    long size() {
+        return content.size;
+    }
+
+    String displayName() {
+        return name + " (Depth " + depth + ")";
+    }
+
+    ModResolver.Candidate<ModJar> toCandidate() {
+        return new ModResolver.Candidate<>(this, modId(), version(), content.semver, depth, displayName());
+    }
+}
@@ -0,0 +1,149 @@
+package me.shedaniel.modflattener;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads and rewrites {@code fabric.mod.json} with Gson's streaming API, so no tree of the document is built.
+ * The file is always decoded as UTF-8, as required by the Fabric specification.
+ */
+final class ModJson {
+    private static final ModJson INVALID = new ModJson(null, null, null);
+
+    /**
+     * The mod id, {@code null} if it is missing or not a primitive.
+     */
+    final String id;
+    /**
+     * The mod version, {@code null} if it is missing or not a primitive.
+     */
+    final String version;
+    /**
+     * The environment the mod is loaded in, {@code "*"} if it is not restricted, {@code null} if the document is unreadable.
+     */
+    final String environment;
+
+    private ModJson(String id, String version, String environment) {
+        this.id = id;
+        this.version = version;
+        this.environment = environment;
+    }
+
+    /**
+     * Reads the id, the version and the environment in one pass over the document. An unreadable document has none.
+     */
+    static ModJson read(byte[] bytes) {
+        try (JsonReader reader = reader(bytes)) {
+            String id = null;
+            String version = null;
+            String environment = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (name.equals("id")) id = nextPrimitive(reader);
+                else if (name.equals("version")) version = nextPrimitive(reader);
+                else if (name.equals("environment")) environment = nextPrimitive(reader);
+                else reader.skipValue();
+            }
+            reader.endObject();
+            if (reader.peek() != JsonToken.END_DOCUMENT) return INVALID;
+            return new ModJson(id, version, environment != null ? environment : "*");
+        } catch (IOException | IllegalStateException | NumberFormatException e) {
+            return INVALID;
+        }
+    }
+
+    /**
+     * Returns the document without its top level {@code jars}, or {@code bytes} itself if there is nothing to remove
+     * or the document is unreadable. Every other token is copied through as is.
+     */
+    static byte[] stripJars(byte[] bytes) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length);
+        boolean stripped = false;
+        try (JsonReader reader = reader(bytes);
+             JsonWriter writer = new JsonWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8))) {
+            writer.setLenient(true);
+            reader.beginObject();
+            writer.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (name.equals("jars")) {
+                    reader.skipValue();
+                    stripped = true;
+                } else {
+                    writer.name(name);
+                    copy(reader, writer);
+                }
+            }
+            reader.endObject();
+            writer.endObject();
+            if (reader.peek() != JsonToken.END_DOCUMENT) return bytes;
+        } catch (IOException | IllegalStateException | NumberFormatException e) {
+            return bytes;
+        }
+        return stripped ? out.toByteArray() : bytes;
+    }
+
+    private static JsonReader reader(byte[] bytes) {
+        JsonReader reader = new JsonReader(new InputStreamReader(new ByteArrayInputStream(bytes), StandardCharsets.UTF_8));
+        reader.setLenient(true);
+        return reader;
+    }
+
+    private static String nextPrimitive(JsonReader reader) throws IOException {
+        switch (reader.peek()) {
+            case STRING:
+            case NUMBER:
+                return reader.nextString();
+            case BOOLEAN:
+                return String.valueOf(reader.nextBoolean());
+            default:
+                reader.skipValue();
+                return null;
+        }
+    }
+
+    private static void copy(JsonReader reader, JsonWriter writer) throws IOException {
+        switch (reader.peek()) {
+            case BEGIN_OBJECT:
+                reader.beginObject();
+                writer.beginObject();
+                while (reader.hasNext()) {
+                    writer.name(reader.nextName());
+                    copy(reader, writer);
+                }
+                reader.endObject();
+                writer.endObject();
+                break;
+            case BEGIN_ARRAY:
+                reader.beginArray();
+                writer.beginArray();
+                while (reader.hasNext()) {
+                    copy(reader, writer);
+                }
+                reader.endArray();
+                writer.endArray();
+                break;
+            case STRING:
+                writer.value(reader.nextString());
+                break;
+            case NUMBER:
+                // Keeps the number exactly as written
+                writer.jsonValue(reader.nextString());
+                break;
+            case BOOLEAN:
+                writer.value(reader.nextBoolean());
+                break;
+            case NULL:
+                reader.nextNull();
+                writer.nullValue();
+                break;
+            default:
+                throw new IllegalStateException("Unexpected " + reader.peek());
+        }
+    }
+}
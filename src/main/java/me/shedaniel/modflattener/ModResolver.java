@@ -0,0 +1,163 @@
+package me.shedaniel.modflattener;
+
+import net.fabricmc.loader.api.SemanticVersion;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Selects which jar to keep for every mod id, given the already parsed metadata of every candidate.
+ * The resolver does not touch the filesystem, the candidates carry whatever source object the caller needs back.
+ */
+final class ModResolver {
+    private ModResolver() {
+    }
+
+    /**
+     * Resolves every mod id in one pass over the candidates sorted by mod id.
+     * Candidates of the same mod id keep their relative order, which decides ties the same way on every run.
+     *
+     * @return the decisions, ordered by mod id
+     */
+    static <T> List<Decision<T>> resolve(List<Candidate<T>> candidates) {
+        List<Candidate<T>> sorted = new ArrayList<>(candidates);
+        sorted.sort(Comparator.comparing(candidate -> candidate.modId));
+        List<Decision<T>> decisions = new ArrayList<>();
+        int start = 0;
+        for (int i = 1; i <= sorted.size(); i++) {
+            if (i == sorted.size() || !sorted.get(i).modId.equals(sorted.get(start).modId)) {
+                decisions.add(resolve(sorted.get(start).modId, sorted.subList(start, i)));
+                start = i;
+            }
+        }
+        return decisions;
+    }
+
+    private static <T> Decision<T> resolve(String modId, List<Candidate<T>> candidates) {
+        Decision<T> decision = new Decision<>(modId);
+        if (modId.equals("invalid")) {
+            for (Candidate<T> candidate : candidates) decision.selected.add(candidate.source);
+            return decision;
+        }
+        for (Candidate<T> candidate : candidates) {
+            if (candidate.depth == 0) {
+                decision.info("Selected " + candidate.displayName + " from " + modId + " as depth 0 mod");
+                decision.selected.add(candidate.source);
+                return decision;
+            }
+        }
+        List<String> invalidVersions = new ArrayList<>();
+        List<String> invalidSemverVersions = new ArrayList<>();
+        Candidate<T> max = null;
+        for (Candidate<T> candidate : candidates) {
+            if (candidate.version == null) invalidVersions.add(candidate.displayName);
+            if (candidate.semver == null) {
+                invalidSemverVersions.add(candidate.displayName + " [" + candidate.version + "]");
+            } else if (max == null || candidate.semver.compareTo(max.semver) > 0) {
+                max = candidate;
+            }
+        }
+        if (max == null) max = candidates.get(0);
+        boolean several = candidates.size() > 1;
+        if (several && !invalidVersions.isEmpty()) {
+            decision.warn(modId + " has invalid version(s): " + String.join(", ", invalidVersions));
+        } else if (several && !invalidSemverVersions.isEmpty()) {
+            decision.warn(modId + " has invalid semantic version(s): " + String.join(", ", invalidSemverVersions));
+        } else {
+            // Every candidate has a semantic version here, unless there is only one candidate
+            List<Candidate<T>> latest = new ArrayList<>();
+            Set<String> seenVersions = new HashSet<>();
+            for (Candidate<T> candidate : candidates) {
+                if (seenVersions.add(String.valueOf(candidate.version)) && (candidate == max || compare(candidate, max) == 0))
+                    latest.add(candidate);
+            }
+            if (latest.size() > 1) {
+                decision.warn(modId + " has duplicate entries: " +
+                        latest.stream().map(candidate -> candidate.displayName).collect(Collectors.joining(", ")));
+            } else {
+                Candidate<T> selected = max;
+                List<String> against = candidates.stream().filter(candidate -> compare(candidate, selected) != 0)
+                        .map(candidate -> candidate.version).distinct().collect(Collectors.toList());
+                if (against.isEmpty()) {
+                    decision.info("Selected " + max.displayName + " (" + max.version + ") from " + modId + " as the only version");
+                } else {
+                    decision.info("Selected " + max.displayName + " (" + max.version + ") from " + modId +
+                            " as the latest version against " + String.join(", ", against));
+                }
+                decision.selected.add(max.source);
+                return decision;
+            }
+        }
+        if (several) {
+            int minDepth = Integer.MAX_VALUE;
+            for (Candidate<T> candidate : candidates) minDepth = Math.min(minDepth, candidate.depth);
+            // The first version found at the lowest depth wins, represented by its last candidate
+            String firstVersion = null;
+            Candidate<T> forced = null;
+            for (Candidate<T> candidate : candidates) {
+                if (candidate.depth != minDepth) continue;
+                if (forced == null) firstVersion = candidate.version;
+                if (Objects.equals(candidate.version, firstVersion)) forced = candidate;
+            }
+            decision.warn("Forcefully selected " + forced.displayName + " from " + modId);
+            decision.forced = true;
+            decision.selected.add(forced.source);
+        }
+        return decision;
+    }
+
+    private static int compare(Candidate<?> a, Candidate<?> b) {
+        if (a.semver == null || b.semver == null) return a.semver == b.semver ? 0 : a.semver == null ? -1 : 1;
+        return a.semver.compareTo(b.semver);
+    }
+
+    static final class Candidate<T> {
+        final T source;
+        final String modId;
+        /**
+         * The version as written in {@code fabric.mod.json}, {@code null} if there is none.
+         */
+        final String version;
+        /**
+         * The parsed {@link #version}, {@code null} if it is not a semantic version.
+         */
+        final SemanticVersion semver;
+        final int depth;
+        final String displayName;
+
+        Candidate(T source, String modId, String version, SemanticVersion semver, int depth, String displayName) {
+            this.source = source;
+            this.modId = modId;
+            this.version = version;
+            this.semver = semver;
+            this.depth = depth;
+            this.displayName = displayName;
+        }
+    }
+
+    static final class Decision<T> {
+        final String modId;
+        final List<T> selected = new ArrayList<>();
+        /**
+         * What to log for this decision in order, warnings are the entries with a {@code true} value.
+         */
+        final List<Map.Entry<String, Boolean>> messages = new ArrayList<>();
+        /**
+         * Whether the versions could not be compared, and the selection fell back to the first version found at the
+         * lowest depth, represented by the last candidate of that version at that depth.
+         */
+        boolean forced;
+
+        private Decision(String modId) {
+            this.modId = modId;
+        }
+
+        private void info(String message) {
+            messages.add(new AbstractMap.SimpleImmutableEntry<>(message, false));
+        }
+
+        private void warn(String message) {
+            messages.add(new AbstractMap.SimpleImmutableEntry<>(message, true));
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package me.shedaniel.modflattener;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.function.Predicate;
+
+/**
+ * Maps jars and loads them into memory on a thread of its own, ahead of the threads reading them, so that
+ * waiting on the disk overlaps with parsing the jars read before. At most {@code depth} loaded jars wait to be read.
+ * <p>
+ * Every file has a slot of its own. A reader only ever waits for the jar it asked for while this thread is loading it,
+ * and claims a jar this thread did not get to yet to read it itself, so readers never depend on each other.
+ */
+final class ReadAhead implements AutoCloseable {
+    private final Map<File, Slot> slots = new HashMap<>();
+    private final Semaphore window;
+    private final Thread thread;
+
+    /**
+     * @param needsBytes whether the bytes of a file are going to be read, other files are not loaded
+     */
+    ReadAhead(List<File> files, int depth, Predicate<File> needsBytes) {
+        for (File file : files) {
+            slots.put(file, new Slot());
+        }
+        this.window = new Semaphore(depth);
+        this.thread = new Thread(() -> {
+            try {
+                for (File file : files) {
+                    Slot slot = slots.get(file);
+                    if (!needsBytes.test(file)) {
+                        if (slot.claim()) slot.complete(null, null);
+                        continue;
+                    }
+                    window.acquire();
+                    if (!slot.claim()) {
+                        window.release();
+                        continue;
+                    }
+                    load(slot, file);
+                }
+            } catch (InterruptedException ignored) {
+                // Closed before every jar was loaded, the remaining ones are read by their readers
+            } catch (RuntimeException e) {
+                // The remaining jars are read by their readers, which then fail on their own
+            }
+        }, "Flattener Read-Ahead");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void load(Slot slot, File file) {
+        try {
+            ByteBuffer bytes = ZipArchive.map(file);
+            if (bytes instanceof MappedByteBuffer) ((MappedByteBuffer) bytes).load();
+            slot.complete(bytes, null);
+        } catch (IOException e) {
+            slot.complete(null, e);
+        } catch (RuntimeException e) {
+            slot.complete(null, new IOException("Could not read " + file, e));
+        }
+    }
+
+    /**
+     * Returns the loaded bytes of {@code file}, or {@code null} if it was not loaded ahead and the caller has to read
+     * it itself. Must be called at most once per file.
+     *
+     * @throws IOException if loading the jar failed
+     */
+    ByteBuffer take(File file) throws IOException {
+        Slot slot = slots.get(file);
+        if (slot == null || slot.claim()) return null;
+        ByteBuffer bytes = slot.await();
+        if (bytes != null) window.release();
+        return bytes;
+    }
+
+    @Override
+    public void close() {
+        thread.interrupt();
+    }
+
+    private static final class Slot {
+        private boolean claimed;
+        private boolean done;
+        private ByteBuffer bytes;
+        private IOException failure;
+
+        /**
+         * Claims the jar for whoever calls this first, the loading thread or the reader.
+         */
+        private synchronized boolean claim() {
+            if (claimed) return false;
+            claimed = true;
+            return true;
+        }
+
+        private synchronized void complete(ByteBuffer bytes, IOException failure) {
+            this.bytes = bytes;
+            this.failure = failure;
+            this.done = true;
+            notifyAll();
+        }
+
+        /**
+         * Waits for the loading thread, which claimed this jar and is loading it.
+         */
+        private synchronized ByteBuffer await() throws IOException {
+            try {
+                while (!done) wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while reading ahead");
+            }
+            if (failure != null) throw failure;
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,306 @@
+package me.shedaniel.modflattener;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * A zip archive read through its central directory, entries can be accessed without going through the rest of the archive.
+ * Zip64 archives are not supported, {@link #read(ByteBuffer)} throws a {@link ZipException} for them.
+ */
+final class ZipArchive {
+    static final int STORED = 0;
+    static final int DEFLATED = 8;
+    static final int LOCAL_HEADER = 0x04034b50;
+    static final int CENTRAL_HEADER = 0x02014b50;
+    static final int END_HEADER = 0x06054b50;
+    /**
+     * 1980-02-01 00:00 in MS-DOS format, the earliest time that survives every time zone conversion of zip tools.
+     * Entries written with it give the same bytes on every run.
+     */
+    static final int REPRODUCIBLE_TIME = ((2 << 5) | 1) << 16;
+    private static final int CHUNK = 64 * 1024;
+
+    final ByteBuffer buffer;
+    final List<Entry> entries;
+    private final Map<String, Entry> byName;
+
+    private ZipArchive(ByteBuffer buffer, List<Entry> entries) {
+        this.buffer = buffer;
+        this.entries = entries;
+        this.byName = new HashMap<>();
+        for (Entry entry : entries) {
+            byName.putIfAbsent(entry.name, entry);
+        }
+    }
+
+    static ZipArchive read(ByteBuffer buffer) throws ZipException {
+        buffer = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int end = findEnd(buffer);
+        int count = buffer.getShort(end + 10) & 0xFFFF;
+        long directorySize = buffer.getInt(end + 12) & 0xFFFFFFFFL;
+        long directoryOffset = buffer.getInt(end + 16) & 0xFFFFFFFFL;
+        if (count == 0xFFFF || directorySize == 0xFFFFFFFFL || directoryOffset == 0xFFFFFFFFL)
+            throw new ZipException("Zip64 archives are not supported");
+        if (directoryOffset + directorySize > end)
+            throw new ZipException("Invalid central directory");
+        List<Entry> entries = new ArrayList<>(count);
+        int position = (int) directoryOffset;
+        for (int i = 0; i < count; i++) {
+            if (position + 46 > end || buffer.getInt(position) != CENTRAL_HEADER)
+                throw new ZipException("Invalid central directory header");
+            int nameLength = buffer.getShort(position + 28) & 0xFFFF;
+            int extraLength = buffer.getShort(position + 30) & 0xFFFF;
+            int commentLength = buffer.getShort(position + 32) & 0xFFFF;
+            int length = 46 + nameLength + extraLength + commentLength;
+            byte[] name = new byte[nameLength];
+            ByteBuffer nameBuffer = buffer.duplicate();
+            nameBuffer.position(position + 46);
+            nameBuffer.get(name);
+            Entry entry = new Entry(
+                    new String(name, StandardCharsets.UTF_8),
+                    buffer.getShort(position + 10) & 0xFFFF,
+                    buffer.getInt(position + 16) & 0xFFFFFFFFL,
+                    buffer.getInt(position + 20) & 0xFFFFFFFFL,
+                    buffer.getInt(position + 24) & 0xFFFFFFFFL,
+                    buffer.getInt(position + 42) & 0xFFFFFFFFL,
+                    position, length
+            );
+            if (entry.compressedSize == 0xFFFFFFFFL || entry.size == 0xFFFFFFFFL || entry.localHeaderOffset == 0xFFFFFFFFL)
+                throw new ZipException("Zip64 archives are not supported");
+            entries.add(entry);
+            position += length;
+        }
+        return new ZipArchive(buffer, Collections.unmodifiableList(entries));
+    }
+
+    private static int findEnd(ByteBuffer buffer) throws ZipException {
+        int limit = Math.max(0, buffer.limit() - 22 - 0xFFFF);
+        for (int position = buffer.limit() - 22; position >= limit; position--) {
+            if (buffer.getInt(position) == END_HEADER)
+                return position;
+        }
+        throw new ZipException("End of central directory not found");
+    }
+
+    /**
+     * Maps {@code file} into memory, the mapping stays valid after the file is closed.
+     */
+    static ByteBuffer map(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    /**
+     * Converts an MS-DOS {@code time} to milliseconds in the local time zone, as {@link java.util.zip.ZipEntry#setTime}
+     * converts it back.
+     */
+    static long javaTime(int time) {
+        return new GregorianCalendar(1980 + ((time >> 25) & 0x7F), ((time >> 21) & 0x0F) - 1, (time >> 16) & 0x1F,
+                (time >> 11) & 0x1F, (time >> 5) & 0x3F, (time << 1) & 0x3E).getTimeInMillis();
+    }
+
+    /**
+     * Returns a stream over the remaining bytes of {@code buffer}, without copying them.
+     */
+    static InputStream stream(ByteBuffer buffer) {
+        ByteBuffer bytes = buffer.duplicate();
+        return new InputStream() {
+            @Override
+            public int read() {
+                return bytes.hasRemaining() ? bytes.get() & 0xFF : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (len == 0) return 0;
+                if (!bytes.hasRemaining()) return -1;
+                int length = Math.min(len, bytes.remaining());
+                bytes.get(b, off, length);
+                return length;
+            }
+
+            @Override
+            public int available() {
+                return bytes.remaining();
+            }
+        };
+    }
+
+    Entry get(String name) {
+        return byName.get(name);
+    }
+
+    /**
+     * Returns the central directory record of {@code entry}.
+     */
+    ByteBuffer centralRecord(Entry entry) {
+        return slice(entry.centralOffset, entry.centralLength);
+    }
+
+    /**
+     * Returns the data of {@code entry} as stored in the archive, compressed if the entry is compressed.
+     */
+    ByteBuffer rawData(Entry entry) throws ZipException {
+        int local = (int) entry.localHeaderOffset;
+        if (local + 30 > buffer.limit() || buffer.getInt(local) != LOCAL_HEADER)
+            throw new ZipException("Invalid local header of " + entry.name);
+        int nameLength = buffer.getShort(local + 26) & 0xFFFF;
+        int extraLength = buffer.getShort(local + 28) & 0xFFFF;
+        long start = local + 30L + nameLength + extraLength;
+        if (start + entry.compressedSize > buffer.limit())
+            throw new ZipException("Truncated data of " + entry.name);
+        return slice((int) start, (int) entry.compressedSize);
+    }
+
+    /**
+     * Returns the uncompressed data of {@code entry}, stored entries are returned in place without copying them.
+     */
+    ByteBuffer data(Entry entry) throws ZipException {
+        if (entry.method == STORED) return rawData(entry);
+        return ByteBuffer.wrap(read(entry));
+    }
+
+    /**
+     * Returns the uncompressed data of {@code entry}.
+     */
+    byte[] read(Entry entry) throws ZipException {
+        ByteBuffer raw = rawData(entry);
+        if (entry.method == STORED) {
+            byte[] bytes = new byte[raw.remaining()];
+            raw.get(bytes);
+            return bytes;
+        }
+        if (entry.method != DEFLATED)
+            throw new ZipException("Unsupported compression method " + entry.method + " of " + entry.name);
+        if (entry.size > Integer.MAX_VALUE - 8)
+            throw new ZipException("Entry too large: " + entry.name);
+        byte[] bytes = new byte[(int) entry.size];
+        Inflater inflater = new Inflater(true);
+        try {
+            Feed feed = new Feed(raw, entry.name);
+            int length = 0;
+            while (length < bytes.length && !inflater.finished()) {
+                feed.next(inflater);
+                length += inflater.inflate(bytes, length, bytes.length - length);
+            }
+            if (length != bytes.length)
+                throw new ZipException("Truncated data of " + entry.name);
+            return bytes;
+        } catch (DataFormatException e) {
+            throw new ZipException("Invalid data of " + entry.name + ": " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Writes the uncompressed data of {@code entry} to {@code file}, holding no more than a small buffer in memory.
+     */
+    void inflateTo(Entry entry, File file) throws IOException {
+        ByteBuffer raw = rawData(entry);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.CREATE)) {
+            if (entry.method == STORED) {
+                while (raw.hasRemaining()) channel.write(raw);
+                return;
+            }
+            if (entry.method != DEFLATED)
+                throw new ZipException("Unsupported compression method " + entry.method + " of " + entry.name);
+            Inflater inflater = new Inflater(true);
+            try {
+                Feed feed = new Feed(raw, entry.name);
+                byte[] output = new byte[CHUNK];
+                long length = 0;
+                while (length < entry.size && !inflater.finished()) {
+                    feed.next(inflater);
+                    int inflated = inflater.inflate(output);
+                    ByteBuffer buffer = ByteBuffer.wrap(output, 0, inflated);
+                    while (buffer.hasRemaining()) channel.write(buffer);
+                    length += inflated;
+                }
+                if (length != entry.size)
+                    throw new ZipException("Truncated data of " + entry.name);
+            } catch (DataFormatException e) {
+                throw new ZipException("Invalid data of " + entry.name + ": " + e.getMessage());
+            } finally {
+                inflater.end();
+            }
+        }
+    }
+
+    private ByteBuffer slice(int position, int length) {
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(position);
+        duplicate.limit(position + length);
+        return duplicate.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Hands the compressed data of an entry to an {@link Inflater} in small chunks.
+     */
+    private static final class Feed {
+        private final ByteBuffer raw;
+        private final byte[] chunk;
+        private final String name;
+        private boolean dummy;
+
+        private Feed(ByteBuffer raw, String name) {
+            this.raw = raw;
+            this.chunk = new byte[(int) Math.min(CHUNK, raw.remaining() + 1L)];
+            this.name = name;
+        }
+
+        private void next(Inflater inflater) throws ZipException {
+            if (inflater.needsDictionary())
+                throw new ZipException("Invalid data of " + name + ": preset dictionary");
+            if (!inflater.needsInput()) return;
+            if (raw.hasRemaining()) {
+                int length = Math.min(chunk.length, raw.remaining());
+                raw.get(chunk, 0, length);
+                inflater.setInput(chunk, 0, length);
+            } else if (!dummy) {
+                // In nowrap mode the inflater needs an extra dummy byte after the data
+                dummy = true;
+                inflater.setInput(new byte[1]);
+            } else {
+                throw new ZipException("Truncated data of " + name);
+            }
+        }
+    }
+
+    static final class Entry {
+        final String name;
+        final int method;
+        final long crc;
+        final long compressedSize;
+        final long size;
+        final long localHeaderOffset;
+        private final int centralOffset;
+        private final int centralLength;
+
+        private Entry(String name, int method, long crc, long compressedSize, long size, long localHeaderOffset, int centralOffset, int centralLength) {
+            this.name = name;
+            this.method = method;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localHeaderOffset = localHeaderOffset;
+            this.centralOffset = centralOffset;
+            this.centralLength = centralLength;
+        }
+
+        boolean isDirectory() {
+            return name.endsWith("/");
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package me.shedaniel.modflattener;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.*;
+
+public class FlattenerTest {
+    private static byte[] jar(String modId, String jars, byte[] nested) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(out)) {
+            zip.putNextEntry(new ZipEntry("fabric.mod.json"));
+            zip.write(("{\"schemaVersion\":1,\"id\":\"" + modId + "\",\"version\":\"1.0.0\"" + jars + "}").getBytes(StandardCharsets.UTF_8));
+            zip.putNextEntry(new ZipEntry("com/example/" + modId + "/Mod.class"));
+            zip.write(modId.getBytes(StandardCharsets.UTF_8));
+            if (nested != null) {
+                zip.putNextEntry(new ZipEntry("META-INF/jars/inner.jar"));
+                zip.write(nested);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] outerJar() throws IOException {
+        return jar("outer", ",\"jars\":[{\"file\":\"META-INF/jars/inner.jar\"}]", jar("inner", "", null));
+    }
+
+    /**
+     * Flattens a folder holding only {@code outer.jar} and checks that the fallback still extracted its nested jar.
+     */
+    private static void assertFlattened(byte[] outer) throws IOException {
+        Path folder = Files.createTempDirectory("flattener");
+        try {
+            File mods = Files.createDirectory(folder.resolve("mods")).toFile();
+            File output = folder.resolve("flattenedMods").toFile();
+            Files.write(new File(mods, "outer.jar").toPath(), outer);
+            Flattener.builder().input(mods).output(output).cache(false).threads(2).build().flatten();
+            assertTrue(new File(output, "inner.jar").isFile());
+            try (ZipFile zip = new ZipFile(new File(output, "outer.jar"))) {
+                assertNull(zip.getEntry("META-INF/jars/inner.jar"));
+                assertNotNull(zip.getEntry("com/example/outer/Mod.class"));
+                ZipEntry modJson = zip.getEntry("fabric.mod.json");
+                try (InputStream in = zip.getInputStream(modJson)) {
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    byte[] buffer = new byte[4096];
+                    int length;
+                    while ((length = in.read(buffer)) != -1) out.write(buffer, 0, length);
+                    assertFalse(new String(out.toByteArray(), StandardCharsets.UTF_8).contains("jars"));
+                }
+            }
+        } finally {
+            try (Stream<Path> paths = Files.walk(folder)) {
+                for (Path path : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                    Files.delete(path);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void zip64JarIsStreamed() throws IOException {
+        byte[] outer = outerJar();
+        // Mark the central directory offset as stored in a Zip64 record, which the mapped reader does not support
+        ByteBuffer.wrap(outer).order(ByteOrder.LITTLE_ENDIAN).putInt(outer.length - 22 + 16, 0xFFFFFFFF);
+        assertFlattened(outer);
+    }
+
+    @Test
+    public void jarWithoutCentralDirectoryIsStreamed() throws IOException {
+        byte[] outer = outerJar();
+        int directoryOffset = ByteBuffer.wrap(outer).order(ByteOrder.LITTLE_ENDIAN).getInt(outer.length - 22 + 16);
+        assertFlattened(Arrays.copyOf(outer, directoryOffset));
+    }
+}
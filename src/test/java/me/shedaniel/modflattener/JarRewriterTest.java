@@ -0,0 +1,150 @@
+package me.shedaniel.modflattener;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.*;
+
+public class JarRewriterTest {
+    private static final int DATA_DESCRIPTOR_FLAG = 1 << 3;
+
+    /**
+     * Writes {@code entries} deflated, as {@link ZipOutputStream} does with a data descriptor after each entry.
+     */
+    private static byte[] zip(Map<String, byte[]> entries) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(out)) {
+            for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                zip.putNextEntry(new ZipEntry(entry.getKey()));
+                zip.write(entry.getValue());
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static Map<String, byte[]> entries(int count) {
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        Random random = new Random(count);
+        for (int i = count - 1; i >= 0; i--) {
+            StringBuilder builder = new StringBuilder();
+            for (int j = random.nextInt(200); j >= 0; j--) {
+                builder.append("line ").append(random.nextInt(10)).append('\n');
+            }
+            entries.put("com/example/Entry" + i + ".class", builder.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        return entries;
+    }
+
+    private static byte[] rewrite(byte[] bytes, Map<String, byte[]> replacements) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JarRewriter.rewrite(ZipArchive.read(ByteBuffer.wrap(bytes)), Channels.newChannel(out),
+                entry -> !entry.name.endsWith(".jar"), replacements);
+        return out.toByteArray();
+    }
+
+    private static byte[] repack(byte[] bytes, int threads) throws InterruptedException, ExecutionException {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            return pool.submit(() -> {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                JarRewriter.repack(ZipArchive.read(ByteBuffer.wrap(bytes)), Channels.newChannel(out), entry -> true,
+                        Collections.emptyMap(), 9);
+                return out.toByteArray();
+            }).get();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static int localFlags(byte[] bytes, ZipArchive.Entry entry) {
+        return (bytes[(int) entry.localHeaderOffset + 6] & 0xFF) | (bytes[(int) entry.localHeaderOffset + 7] & 0xFF) << 8;
+    }
+
+    /**
+     * Reads every entry of {@code bytes} with {@link ZipFile}, by entry name.
+     */
+    private static Map<String, byte[]> readWithZipFile(byte[] bytes) throws IOException {
+        File file = File.createTempFile("rewritten", ".jar");
+        try {
+            Files.write(file.toPath(), bytes);
+            Map<String, byte[]> entries = new LinkedHashMap<>();
+            try (ZipFile zip = new ZipFile(file)) {
+                for (ZipEntry entry : Collections.list(zip.entries())) {
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    try (InputStream in = zip.getInputStream(entry)) {
+                        byte[] buffer = new byte[4096];
+                        int length;
+                        while ((length = in.read(buffer)) != -1) out.write(buffer, 0, length);
+                    }
+                    entries.put(entry.getName(), out.toByteArray());
+                }
+            }
+            return entries;
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void dataDescriptorEntryIsCopiedRaw() throws IOException {
+        Map<String, byte[]> entries = entries(3);
+        byte[] bytes = zip(entries);
+        ZipArchive archive = ZipArchive.read(ByteBuffer.wrap(bytes));
+        byte[] rewritten = rewrite(bytes, Collections.emptyMap());
+        ZipArchive result = ZipArchive.read(ByteBuffer.wrap(rewritten));
+        assertEquals(archive.entries.size(), result.entries.size());
+        for (ZipArchive.Entry entry : archive.entries) {
+            assertTrue(entry.name, (localFlags(bytes, entry) & DATA_DESCRIPTOR_FLAG) != 0);
+            ZipArchive.Entry copied = result.get(entry.name);
+            // The compressed data is copied as is, only the local header no longer needs the data descriptor
+            assertEquals(archive.rawData(entry), result.rawData(copied));
+            assertEquals(0, localFlags(rewritten, copied) & DATA_DESCRIPTOR_FLAG);
+        }
+        Map<String, byte[]> read = readWithZipFile(rewritten);
+        assertEquals(entries.keySet(), read.keySet());
+        for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+            assertArrayEquals(entry.getValue(), read.get(entry.getKey()));
+        }
+    }
+
+    @Test
+    public void replacementsAndDroppedEntriesOpenWithZipFile() throws IOException {
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        entries.put("fabric.mod.json", "{\"id\":\"mod\",\"jars\":[]}".getBytes(StandardCharsets.UTF_8));
+        entries.put("META-INF/jars/nested.jar", new byte[]{1, 2, 3});
+        entries.put("com/example/Mod.class", "class".getBytes(StandardCharsets.UTF_8));
+        byte[] replacement = "{\"id\":\"mod\"}".getBytes(StandardCharsets.UTF_8);
+        Map<String, byte[]> read = readWithZipFile(rewrite(zip(entries), Collections.singletonMap("fabric.mod.json", replacement)));
+        assertEquals(Arrays.asList("fabric.mod.json", "com/example/Mod.class"), new ArrayList<>(read.keySet()));
+        assertArrayEquals(replacement, read.get("fabric.mod.json"));
+        assertArrayEquals(entries.get("com/example/Mod.class"), read.get("com/example/Mod.class"));
+    }
+
+    @Test
+    public void repackIsIndependentOfThreadCount() throws Exception {
+        Map<String, byte[]> entries = entries(300);
+        byte[] bytes = zip(entries);
+        byte[] single = repack(bytes, 1);
+        assertArrayEquals(single, repack(bytes, 4));
+        assertArrayEquals(single, repack(bytes, 8));
+        Map<String, byte[]> read = readWithZipFile(single);
+        assertEquals(new TreeSet<>(entries.keySet()), new TreeSet<>(read.keySet()));
+        for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+            assertArrayEquals(entry.getValue(), read.get(entry.getKey()));
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package me.shedaniel.modflattener;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class ModJsonTest {
+    private static byte[] bytes(String json) {
+        return json.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String stripJars(String json) {
+        return new String(ModJson.stripJars(bytes(json)), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void topLevelJarsAreRemoved() {
+        assertEquals("{\"id\":\"mod\",\"custom\":{\"jars\":[\"kept.jar\"]}}",
+                stripJars("{\"id\":\"mod\",\"jars\":[{\"file\":\"META-INF/jars/a.jar\"}],\"custom\":{\"jars\":[\"kept.jar\"]}}"));
+    }
+
+    @Test
+    public void numbersAreKeptAsWritten() {
+        assertEquals("{\"schemaVersion\":1,\"weight\":1.50,\"big\":1e400}",
+                stripJars("{\"schemaVersion\":1,\"jars\":[],\"weight\":1.50,\"big\":1e400}"));
+    }
+
+    @Test
+    public void documentsWithoutJarsAreReturnedUnchanged() {
+        byte[] bytes = bytes("{\"id\":\"mod\",\n  \"version\": \"1.0.0\"}");
+        assertSame(bytes, ModJson.stripJars(bytes));
+    }
+
+    @Test
+    public void nonObjectDocumentsAreReturnedUnchanged() {
+        for (String json : new String[]{"[{\"jars\":[]}]", "\"jars\"", "", "{\"jars\":[]} trailing", "{\"jars\":"}) {
+            byte[] bytes = bytes(json);
+            assertSame(bytes, ModJson.stripJars(bytes));
+        }
+    }
+
+    @Test
+    public void readsIdVersionAndEnvironment() {
+        ModJson json = ModJson.read(bytes("{\"id\":\"mod\",\"version\":1.0,\"environment\":\"client\",\"jars\":[]}"));
+        assertEquals("mod", json.id);
+        assertEquals("1.0", json.version);
+        assertEquals("client", json.environment);
+        assertEquals("*", ModJson.read(bytes("{\"id\":\"mod\"}")).environment);
+        assertNull(ModJson.read(bytes("[]")).environment);
+    }
+}
@@ -0,0 +1,127 @@
+package me.shedaniel.modflattener;
+
+import net.fabricmc.loader.api.SemanticVersion;
+import net.fabricmc.loader.util.version.VersionParsingException;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class ModResolverTest {
+    private static ModResolver.Candidate<String> candidate(String name, String modId, String version, int depth) {
+        SemanticVersion semver;
+        try {
+            semver = version == null ? null : SemanticVersion.parse(version);
+        } catch (VersionParsingException e) {
+            semver = null;
+        }
+        return new ModResolver.Candidate<>(name, modId, version, semver, depth, name + " (Depth " + depth + ")");
+    }
+
+    @SafeVarargs
+    private static ModResolver.Decision<String> resolve(ModResolver.Candidate<String>... candidates) {
+        List<ModResolver.Decision<String>> decisions = ModResolver.resolve(Arrays.asList(candidates));
+        assertEquals(1, decisions.size());
+        return decisions.get(0);
+    }
+
+    private static List<String> messages(ModResolver.Decision<?> decision) {
+        List<String> messages = new ArrayList<>();
+        for (Map.Entry<String, Boolean> message : decision.messages) {
+            messages.add((message.getValue() ? "[WARN] " : "") + message.getKey());
+        }
+        return messages;
+    }
+
+    @Test
+    public void depthZeroWins() {
+        ModResolver.Decision<String> decision = resolve(
+                candidate("nested.jar", "mod", "2.0.0", 1),
+                candidate("mod.jar", "mod", "1.0.0", 0));
+        assertEquals(Collections.singletonList("mod.jar"), decision.selected);
+        assertEquals(Collections.singletonList("Selected mod.jar (Depth 0) from mod as depth 0 mod"), messages(decision));
+        assertFalse(decision.forced);
+    }
+
+    @Test
+    public void invalidModIdKeepsEveryJar() {
+        ModResolver.Decision<String> decision = resolve(
+                candidate("a.jar", "invalid", null, 0),
+                candidate("b.jar", "invalid", null, 1));
+        assertEquals(Arrays.asList("a.jar", "b.jar"), decision.selected);
+        assertTrue(decision.messages.isEmpty());
+    }
+
+    @Test
+    public void invalidVersionIsForced() {
+        ModResolver.Decision<String> decision = resolve(
+                candidate("a.jar", "mod", null, 1),
+                candidate("b.jar", "mod", "1.0.0", 1));
+        assertEquals(Collections.singletonList("a.jar"), decision.selected);
+        assertEquals(Arrays.asList(
+                "[WARN] mod has invalid version(s): a.jar (Depth 1)",
+                "[WARN] Forcefully selected a.jar (Depth 1) from mod"), messages(decision));
+        assertTrue(decision.forced);
+    }
+
+    @Test
+    public void invalidSemverIsForcedAtLowestDepth() {
+        ModResolver.Decision<String> decision = resolve(
+                candidate("a.jar", "mod", "abc", 2),
+                candidate("b.jar", "mod", "1.0.0", 1),
+                candidate("c.jar", "mod", "1.0.0", 1),
+                candidate("d.jar", "mod", "2.0.0", 1));
+        // The first version at the lowest depth wins, represented by its last candidate
+        assertEquals(Collections.singletonList("c.jar"), decision.selected);
+        assertEquals(Arrays.asList(
+                "[WARN] mod has invalid semantic version(s): a.jar (Depth 2) [abc]",
+                "[WARN] Forcefully selected c.jar (Depth 1) from mod"), messages(decision));
+        assertTrue(decision.forced);
+    }
+
+    @Test
+    public void duplicateEntriesAreForced() {
+        ModResolver.Decision<String> decision = resolve(
+                candidate("a.jar", "mod", "1.0", 1),
+                candidate("b.jar", "mod", "1.0.0", 1));
+        assertEquals(Collections.singletonList("a.jar"), decision.selected);
+        assertEquals(Arrays.asList(
+                "[WARN] mod has duplicate entries: a.jar (Depth 1), b.jar (Depth 1)",
+                "[WARN] Forcefully selected a.jar (Depth 1) from mod"), messages(decision));
+        assertTrue(decision.forced);
+    }
+
+    @Test
+    public void latestVersionListsTheOthers() {
+        ModResolver.Decision<String> decision = resolve(
+                candidate("a.jar", "mod", "1.0.0", 1),
+                candidate("b.jar", "mod", "2.0.0", 2),
+                candidate("c.jar", "mod", "1.5.0", 1),
+                candidate("d.jar", "mod", "1.0.0", 1));
+        assertEquals(Collections.singletonList("b.jar"), decision.selected);
+        assertEquals(Collections.singletonList("Selected b.jar (Depth 2) (2.0.0) from mod as the latest version against 1.0.0, 1.5.0"),
+                messages(decision));
+        assertFalse(decision.forced);
+    }
+
+    @Test
+    public void sameVersionIsTheOnlyVersion() {
+        ModResolver.Decision<String> decision = resolve(
+                candidate("a.jar", "mod", "1.0.0", 1),
+                candidate("b.jar", "mod", "1.0.0", 2));
+        assertEquals(Collections.singletonList("a.jar"), decision.selected);
+        assertEquals(Collections.singletonList("Selected a.jar (Depth 1) (1.0.0) from mod as the only version"), messages(decision));
+        assertFalse(decision.forced);
+    }
+
+    @Test
+    public void decisionsAreOrderedByModId() {
+        List<ModResolver.Decision<String>> decisions = ModResolver.resolve(Arrays.asList(
+                candidate("b.jar", "b", "1.0.0", 0),
+                candidate("a.jar", "a", "1.0.0", 0)));
+        assertEquals(2, decisions.size());
+        assertEquals("a", decisions.get(0).modId);
+        assertEquals("b", decisions.get(1).modId);
+    }
+}
@@ -0,0 +1,109 @@
+package me.shedaniel.modflattener;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.*;
+
+public class ZipArchiveTest {
+    static byte[] zip(String name, byte[] content, boolean stored) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(out)) {
+            zip.putNextEntry(entry(name, content, stored));
+            zip.write(content);
+        }
+        return out.toByteArray();
+    }
+
+    static ZipEntry entry(String name, byte[] content, boolean stored) {
+        ZipEntry entry = new ZipEntry(name);
+        if (stored) {
+            CRC32 crc = new CRC32();
+            crc.update(content);
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(content.length);
+            entry.setCrc(crc.getValue());
+        }
+        return entry;
+    }
+
+    static byte[] content(String text, int repeat) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < repeat; i++) {
+            builder.append(text).append(i).append('\n');
+        }
+        return builder.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void deflatedEntryIsInflated() throws IOException {
+        byte[] content = content("deflated", 100);
+        ZipArchive archive = ZipArchive.read(ByteBuffer.wrap(zip("a.txt", content, false)));
+        ZipArchive.Entry entry = archive.get("a.txt");
+        assertEquals(ZipArchive.DEFLATED, entry.method);
+        assertEquals(content.length, entry.size);
+        assertArrayEquals(content, archive.read(entry));
+    }
+
+    @Test
+    public void storedNestedJarIsSlicedInPlace() throws IOException {
+        byte[] nested = zip("fabric.mod.json", "{\"id\":\"nested\"}".getBytes(StandardCharsets.UTF_8), false);
+        byte[] bytes = zip("META-INF/jars/nested.jar", nested, true);
+        ZipArchive archive = ZipArchive.read(ByteBuffer.wrap(bytes));
+        ByteBuffer data = archive.data(archive.get("META-INF/jars/nested.jar"));
+        // The nested jar is a view of its parent, not a copy
+        assertSame(bytes, data.array());
+        assertTrue(data.arrayOffset() > 0);
+        assertEquals(nested.length, data.remaining());
+        ZipArchive nestedArchive = ZipArchive.read(data);
+        assertEquals("{\"id\":\"nested\"}", new String(nestedArchive.read(nestedArchive.get("fabric.mod.json")), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void zip64IsRejected() throws IOException {
+        byte[] bytes = zip("a.txt", content("zip64", 10), false);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        // Mark the central directory offset as stored in a Zip64 record
+        buffer.putInt(bytes.length - 22 + 16, 0xFFFFFFFF);
+        try {
+            ZipArchive.read(ByteBuffer.wrap(bytes));
+            fail("Zip64 archive was read");
+        } catch (ZipException e) {
+            assertEquals("Zip64 archives are not supported", e.getMessage());
+        }
+    }
+
+    @Test
+    public void missingCentralDirectoryIsRejected() {
+        try {
+            ZipArchive.read(ByteBuffer.wrap(content("not a zip", 10)));
+            fail("Plain text was read as an archive");
+        } catch (ZipException e) {
+            assertEquals("End of central directory not found", e.getMessage());
+        }
+    }
+
+    @Test
+    public void streamReadsWithoutConsumingTheBuffer() throws IOException {
+        byte[] bytes = content("stream", 10);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] chunk = new byte[7];
+        int length;
+        try (InputStream stream = ZipArchive.stream(buffer)) {
+            while ((length = stream.read(chunk)) != -1) out.write(chunk, 0, length);
+        }
+        assertArrayEquals(bytes, out.toByteArray());
+        assertEquals(bytes.length, buffer.remaining());
+    }
+}